@@ -0,0 +1,90 @@
+package bench;
+
+import java.util.List;
+
+import frames.Frame;
+import frames.FrameBatch;
+import frames.FrameCluster;
+import frames.FrameCompressed;
+import frames.FrameCompressionAccepted;
+import frames.FrameCompressionRequest;
+import frames.FrameEstablished;
+import frames.FrameHistoryMessage;
+import frames.FrameHistoryRequest;
+import frames.FrameIdPrivate;
+import frames.FrameJoinRoom;
+import frames.FrameKoPrivate;
+import frames.FrameLeaveRoom;
+import frames.FrameLogin;
+import frames.FrameLoginAccepted;
+import frames.FrameLoginPrivate;
+import frames.FrameLoginRefused;
+import frames.FrameMessage;
+import frames.FrameMessagePrivate;
+import frames.FrameOkPrivate;
+import frames.FramePing;
+import frames.FramePong;
+import frames.FrameRequestPrivate;
+import frames.FrameRoomMessage;
+import frames.StringToBbManager;
+
+/**
+ * Measures Frame.asBuffer() for every frame type and the string encoding of StringToBbManager.
+ */
+public class FrameEncodeBench {
+
+	static final String LOGIN = "Gimli";
+	static final String TARGET = "Legolas";
+	static final String SHORT_MESSAGE = "that still counts as one";
+	static final String LONG_MESSAGE = "\u00e9".repeat(300) + "a".repeat(400);
+
+	static Frame[] allFrames() {
+		var requestPrivate = new FrameRequestPrivate(LOGIN, TARGET);
+		var okPrivate = new FrameOkPrivate(requestPrivate);
+		return new Frame[] {
+				new FrameLogin(LOGIN),
+				new FrameLoginAccepted(),
+				new FrameLoginRefused(),
+				new FrameMessage(LOGIN, SHORT_MESSAGE),
+				new FrameMessagePrivate(LOGIN, TARGET, SHORT_MESSAGE),
+				requestPrivate,
+				okPrivate,
+				new FrameKoPrivate(requestPrivate),
+				new FrameIdPrivate(okPrivate, 42),
+				new FrameLoginPrivate(42),
+				new FrameEstablished(),
+				FrameHistoryRequest.last(20),
+				new FrameHistoryMessage(42, 1_700_000_000_000L, LOGIN, SHORT_MESSAGE),
+				new FrameJoinRoom(LOGIN, "room"),
+				new FrameLeaveRoom(LOGIN, "room"),
+				new FrameRoomMessage(LOGIN, "room", SHORT_MESSAGE),
+				new FrameCluster(FrameCluster.PRESENT, LOGIN),
+				new FrameBatch(List.of(new FrameMessage(LOGIN, SHORT_MESSAGE), new FrameMessage(TARGET, SHORT_MESSAGE),
+						new FrameMessage(LOGIN, SHORT_MESSAGE))),
+				new FrameCompressionRequest(FrameCompressed.DEFLATE),
+				new FrameCompressionAccepted(FrameCompressed.DEFLATE),
+				new FrameCompressed(StringToBbManager.stringToBB(SHORT_MESSAGE)),
+				new FramePing(42),
+				new FramePong(42),
+		};
+	}
+
+	public static void main(String[] args) {
+		for (var frame : allFrames())
+			Harness.measure("asBuffer " + frame.getClass().getSimpleName(), frame::asBuffer);
+		var longMessage = new FrameMessage(LOGIN, LONG_MESSAGE);
+		Harness.measure("asBuffer FrameMessage (1 KB message)", longMessage::asBuffer);
+		var codec = new FrameCompressed.Codec();
+		var encodedLongMessage = longMessage.asBuffer().flip();
+		Harness.measure("Codec.compress FrameMessage (1 KB message)",
+				() -> codec.compress(encodedLongMessage, FrameCompressed.MAX_SERVER_DATA_BYTES));
+		var compressedLongMessage = codec.compress(encodedLongMessage, FrameCompressed.MAX_SERVER_DATA_BYTES);
+		var frameCompressed = new FrameCompressed(compressedLongMessage.position(1 + Integer.BYTES));
+		Harness.measure("Codec.inflate FrameMessage (1 KB message)", () -> codec.inflate(frameCompressed));
+
+		Harness.measure("StringToBbManager.stringToBBFormated short", () -> StringToBbManager.stringToBBFormated(SHORT_MESSAGE));
+		Harness.measure("StringToBbManager.stringToBBFormated 1 KB", () -> StringToBbManager.stringToBBFormated(LONG_MESSAGE));
+		Harness.measure("StringToBbManager.stringToBB short", () -> StringToBbManager.stringToBB(SHORT_MESSAGE));
+		Harness.measure("StringToBbManager.testMsg 1 KB", () -> StringToBbManager.testMsg(LONG_MESSAGE));
+	}
+}
@@ -0,0 +1,88 @@
+package bench;
+
+import java.nio.ByteBuffer;
+
+import frames.Frame;
+import readers.FrameReader;
+
+/**
+ * Measures FrameReader.process() on the frames of FrameEncodeBench.
+ *
+ * Coalesced input puts every frame in the buffer before decoding, as after a large read.
+ * Fragmented input delivers the same bytes a few at a time, as on a slow link.
+ */
+public class FrameReaderBench {
+
+	static private int FRAGMENT_SIZE = 7;
+
+	private final ByteBuffer encoded;
+	private final int nbFrames;
+	private final byte lastOpcode;
+	private final ByteBuffer bb;
+	private final FrameReader reader;
+
+	FrameReaderBench(boolean direct) {
+		var frames = FrameEncodeBench.allFrames();
+		nbFrames = frames.length;
+		lastOpcode = frames[nbFrames - 1].getOpcode();
+		var all = ByteBuffer.allocate(1_024);
+		for (var frame : frames)
+			all.put(frame.asBuffer().flip());
+		encoded = all.flip();
+		bb = direct ? ByteBuffer.allocateDirect(1_024) : ByteBuffer.allocate(1_024);
+		reader = new FrameReader(bb);
+	}
+
+	Frame coalesced() {
+		bb.clear();
+		bb.put(encoded.duplicate());
+		Frame last = null;
+		for (var i = 0; i < nbFrames; i++)
+			last = next(null);
+		return last;
+	}
+
+	Frame fragmented() {
+		bb.clear();
+		var source = encoded.duplicate();
+		Frame last = null;
+		for (var i = 0; i < nbFrames; i++)
+			last = next(source);
+		return last;
+	}
+
+	private Frame next(ByteBuffer source) {
+		while (true) {
+			switch (reader.process()) {
+			case DONE:
+				var frame = (Frame) reader.get();
+				reader.reset();
+				return frame;
+			case REFILL:
+				var limit = source.limit();
+				source.limit(Math.min(limit, source.position() + FRAGMENT_SIZE));
+				bb.put(source);
+				source.limit(limit);
+				break;
+			case ERROR:
+				throw new IllegalStateException("unexpected decoding error");
+			}
+		}
+	}
+
+	private boolean decodesBack() {
+		return coalesced().getOpcode() == lastOpcode && fragmented().getOpcode() == lastOpcode;
+	}
+
+	public static void main(String[] args) {
+		var heap = new FrameReaderBench(false);
+		var direct = new FrameReaderBench(true);
+		if (!heap.decodesBack() || !direct.decodesBack())
+			throw new AssertionError("the frames were not decoded back");
+		System.out.println("(one operation decodes " + heap.nbFrames + " frames, one of each type)");
+		Harness.measure("FrameReader coalesced, heap buffer", 50_000, heap::coalesced);
+		Harness.measure("FrameReader coalesced, direct buffer", 50_000, direct::coalesced);
+		Harness.measure("FrameReader fragmented by " + FRAGMENT_SIZE + " bytes, heap buffer", 50_000, heap::fragmented);
+		Harness.measure("FrameReader fragmented by " + FRAGMENT_SIZE + " bytes, direct buffer", 50_000, direct::fragmented);
+	}
+}
@@ -0,0 +1,60 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Minimal benchmark harness.
+ *
+ * An operation is run for some warmup rounds, then for measured rounds.
+ * For each benchmark the average time and the number of bytes allocated
+ * by the benchmark thread are reported per operation.
+ */
+public class Harness {
+
+	public interface Operation {
+		/**
+		 * @return a value consumed by the harness so that the JIT cannot drop the work
+		 */
+		Object run();
+	}
+
+	static private int WARMUP_ROUNDS = 5;
+	static private int ROUNDS = 10;
+	static private int OPERATIONS_PER_ROUND = 200_000;
+	static private final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	static private volatile Object sink;
+
+	public static void measure(String name, Operation operation) {
+		measure(name, OPERATIONS_PER_ROUND, operation);
+	}
+
+	public static void measure(String name, int operationsPerRound, Operation operation) {
+		for (var i = 0; i < WARMUP_ROUNDS; i++)
+			round(operationsPerRound, operation);
+		var threadId = Thread.currentThread().getId();
+		var allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+		var best = Long.MAX_VALUE;
+		var total = 0L;
+		for (var i = 0; i < ROUNDS; i++) {
+			var elapsed = round(operationsPerRound, operation);
+			best = Math.min(best, elapsed);
+			total += elapsed;
+		}
+		var allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+		var operations = (double) ROUNDS * operationsPerRound;
+		System.out.printf("%-55s %10.1f ns/op (best %8.1f) %10.1f B/op%n",
+				name, total / operations, (double) best / operationsPerRound, allocated / operations);
+	}
+
+	private static long round(int operationsPerRound, Operation operation) {
+		Object last = null;
+		var start = System.nanoTime();
+		for (var i = 0; i < operationsPerRound; i++)
+			last = operation.run();
+		var elapsed = System.nanoTime() - start;
+		sink = last;
+		return elapsed;
+	}
+}
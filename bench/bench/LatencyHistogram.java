@@ -0,0 +1,76 @@
+package bench;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram of latencies in nanoseconds.
+ *
+ * Buckets are log-linear: each power of two is split in SUB_BUCKETS linear
+ * buckets, so the relative error of a percentile is below 1/SUB_BUCKETS.
+ */
+public class LatencyHistogram {
+
+	static private int SUB_BUCKET_BITS = 5;
+	static private int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+	public void record(long nanos) {
+		counts.incrementAndGet(indexOf(Math.max(0, nanos)));
+	}
+
+	public long count() {
+		var count = 0L;
+		for (var i = 0; i < counts.length(); i++)
+			count += counts.get(i);
+		return count;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return an upper bound of the latency at this percentile, in nanoseconds
+	 */
+	public long percentile(double percentile) {
+		var count = count();
+		if (count == 0)
+			return 0;
+		var rank = (long) Math.ceil(count * percentile / 100);
+		var seen = 0L;
+		for (var i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= Math.max(1, rank))
+				return upperBoundOf(i);
+		}
+		return upperBoundOf(counts.length() - 1);
+	}
+
+	public void reset() {
+		for (var i = 0; i < counts.length(); i++)
+			counts.set(i, 0);
+	}
+
+	/**
+	 * @return p50, p90, p99 and p99.9 in microseconds
+	 */
+	public String summary() {
+		return String.format("n=%d p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus", count(),
+				percentile(50) / 1e3, percentile(90) / 1e3, percentile(99) / 1e3, percentile(99.9) / 1e3);
+	}
+
+	/**
+	 * Values below 2*SUB_BUCKETS have their own bucket, larger values are
+	 * shifted right until they fit in [SUB_BUCKETS, 2*SUB_BUCKETS).
+	 */
+	private static int indexOf(long value) {
+		var shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	private static long upperBoundOf(int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+		var shift = index / SUB_BUCKETS - 1;
+		var top = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((long) (top + 1) << shift) - 1;
+	}
+}
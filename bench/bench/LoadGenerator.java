@@ -0,0 +1,370 @@
+package bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+import frames.Frame;
+import frames.FrameBatch;
+import frames.FrameLogin;
+import frames.FrameLoginPrivate;
+import frames.FrameMessage;
+import frames.FrameMessagePrivate;
+import frames.FrameOkPrivate;
+import frames.FramePong;
+import frames.FrameRequestPrivate;
+import readers.FrameReader;
+import readers.Reader;
+
+/**
+ * Headless load generator for a ServerChat.
+ *
+ * Opens many non-blocking connections spread over a few selector threads, logs them in,
+ * then drives a mix of public messages, private messages and private connection
+ * handshakes at a target rate. Every second it prints the throughput and at the end
+ * the latency percentiles of each kind of operation:
+ * - public : from the sending of a MESSAGE to its reception by its sender
+ * - private : from the sending of a MESSAGE_PRIVATE to its reception by its target
+ * - handshake : from the sending of a REQUEST_PRIVATE to the reception of ESTABLISHED
+ *   by the requester on its private connection
+ *
+ * Usage : LoadGenerator host port [connections] [threads] [operations/s] [seconds] [public:private:handshake]
+ */
+public class LoadGenerator {
+
+	static private int BUFFER_SIZE = FrameBatch.MAX_DATA_BYTES;
+	static private int MAX_BURST = 10_000;
+
+	private enum Operation { PUBLIC, PRIVATE, HANDSHAKE }
+
+	private interface Handler {
+		void handle(SelectionKey key) throws IOException;
+	}
+
+	private final InetSocketAddress server;
+	private final int nbConnections;
+	private final double rate;
+	private final int[] weights;
+	private final LatencyHistogram publicLatency = new LatencyHistogram();
+	private final LatencyHistogram privateLatency = new LatencyHistogram();
+	private final LatencyHistogram handshakeLatency = new LatencyHistogram();
+	private final LongAdder[] sent = { new LongAdder(), new LongAdder(), new LongAdder() };
+	private final LongAdder received = new LongAdder();
+	private final LongAdder loggedIn = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final List<Worker> workers = new ArrayList<>();
+	private volatile boolean running = true;
+
+	public LoadGenerator(InetSocketAddress server, int nbConnections, int nbThreads, double rate, int[] weights) throws IOException {
+		this.server = server;
+		this.nbConnections = nbConnections;
+		this.rate = rate;
+		this.weights = weights;
+		for (var i = 0; i < nbThreads; i++)
+			workers.add(new Worker(i, nbThreads));
+	}
+
+	/**
+	 * Connections of one selector thread, with their share of the target rate
+	 */
+	private class Worker implements Runnable {
+
+		private final Selector selector = Selector.open();
+		private final List<VirtualClient> clients = new ArrayList<>();
+		private final List<VirtualClient> ready = new ArrayList<>();
+		private final Random random = new Random();
+		private final double operationsPerNano;
+		private long issued;
+
+		private Worker(int index, int nbThreads) throws IOException {
+			for (var i = index; i < nbConnections; i += nbThreads)
+				clients.add(new VirtualClient("load" + i, this));
+			operationsPerNano = rate / nbThreads / 1e9;
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (var client : clients)
+					client.connect();
+				var start = System.nanoTime();
+				while (running) {
+					selector.select(1);
+					for (var key : selector.selectedKeys()) {
+						try {
+							((Handler) key.attachment()).handle(key);
+						} catch (IOException e) {
+							failures.increment();
+							key.channel().close();
+						}
+					}
+					selector.selectedKeys().clear();
+					issueDueOperations(System.nanoTime() - start);
+				}
+				for (var key : selector.keys())
+					key.channel().close();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private void issueDueOperations(long elapsed) {
+			var target = (long) (elapsed * operationsPerNano);
+			if (ready.isEmpty()) { // no burst once the first clients are logged in
+				issued = target;
+				return;
+			}
+			var due = Math.min(MAX_BURST, target - issued);
+			for (var i = 0; i < due; i++) {
+				var client = ready.get(random.nextInt(ready.size()));
+				client.issue(nextOperation(), "load" + random.nextInt(nbConnections));
+			}
+			issued += Math.max(0, due);
+		}
+
+		private Operation nextOperation() {
+			var pick = random.nextInt(weights[0] + weights[1] + weights[2]);
+			if (pick < weights[0])
+				return Operation.PUBLIC;
+			if (pick < weights[0] + weights[1])
+				return Operation.PRIVATE;
+			return Operation.HANDSHAKE;
+		}
+	}
+
+	/**
+	 * Non-blocking connection with its own outgoing queue
+	 */
+	private abstract class Endpoint implements Handler {
+
+		final Worker worker;
+		final SocketChannel sc;
+		final ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE);
+		final Reader reader = new FrameReader(bbin);
+		final Queue<ByteBuffer> queue = new ArrayDeque<>();
+		SelectionKey key;
+
+		Endpoint(Worker worker) throws IOException {
+			this.worker = worker;
+			sc = SocketChannel.open();
+			sc.configureBlocking(false);
+		}
+
+		void connect() throws IOException {
+			sc.connect(server);
+			key = sc.register(worker.selector, SelectionKey.OP_CONNECT, this);
+		}
+
+		void send(Frame frame) {
+			queue.add(frame.asBuffer().flip());
+			if (key.isValid() && sc.isConnected())
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+
+		@Override
+		public void handle(SelectionKey key) throws IOException {
+			if (key.isValid() && key.isConnectable()) {
+				if (!sc.finishConnect())
+					return;
+				onConnected();
+			}
+			if (key.isValid() && key.isWritable()) {
+				while (!queue.isEmpty()) {
+					var bb = queue.element();
+					sc.write(bb);
+					if (bb.hasRemaining())
+						break;
+					queue.remove();
+				}
+			}
+			if (key.isValid() && key.isReadable()) {
+				if (sc.read(bbin) == -1) {
+					sc.close();
+					return;
+				}
+				Reader.ProcessStatus status;
+				while (key.isValid() && (status = reader.process()) != Reader.ProcessStatus.REFILL) {
+					if (status == Reader.ProcessStatus.ERROR)
+						throw new IOException("bad frame");
+					received.increment();
+					onFrame((Frame) reader.get());
+					reader.reset();
+				}
+			}
+			if (key.isValid())
+				key.interestOps(SelectionKey.OP_READ | (queue.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+		}
+
+		abstract void onConnected();
+
+		abstract void onFrame(Frame frame) throws IOException;
+	}
+
+	private class VirtualClient extends Endpoint {
+
+		private final String login;
+		private final Map<String, Long> pendingHandshakes = new HashMap<>();
+
+		VirtualClient(String login, Worker worker) throws IOException {
+			super(worker);
+			this.login = login;
+		}
+
+		@Override
+		void onConnected() {
+			send(new FrameLogin(login));
+		}
+
+		void issue(Operation operation, String target) {
+			var now = System.nanoTime();
+			switch (operation) {
+			case PUBLIC:
+				send(new FrameMessage(login, Long.toString(now)));
+				break;
+			case PRIVATE:
+				send(new FrameMessagePrivate(login, target, Long.toString(now)));
+				break;
+			case HANDSHAKE:
+				if (target.equals(login) || pendingHandshakes.putIfAbsent(target, now) != null)
+					return;
+				send(new FrameRequestPrivate(login, target));
+				break;
+			}
+			sent[operation.ordinal()].increment();
+		}
+
+		@Override
+		void onFrame(Frame frame) throws IOException {
+			switch (frame.getOpcode()) {
+			case 1: // LOGIN_ACCEPTED
+				loggedIn.increment();
+				worker.ready.add(this);
+				break;
+			case 2: // LOGIN_REFUSED
+				failures.increment();
+				break;
+			case 3: // MESSAGE
+				onMessage(frame);
+				break;
+			case 17: // BATCH
+				for (var message : ((FrameBatch) frame).getMessages())
+					onMessage(message);
+				break;
+			case 4: // MESSAGE_PRIVATE
+				privateLatency.record(System.nanoTime() - Long.parseLong(frame.getMessage().get()));
+				break;
+			case 5: // REQUEST_PRIVATE
+				send(new FrameOkPrivate(frame.getLoginSender().get(), login));
+				break;
+			case 7: // KO_PRIVATE
+				pendingHandshakes.remove(frame.getLoginTarget().get());
+				failures.increment();
+				break;
+			case 8: // ID_PRIVATE
+				var requester = frame.getLoginSender().get().equals(login);
+				var start = requester ? pendingHandshakes.remove(frame.getLoginTarget().get()) : null;
+				new TunnelEnd(worker, frame.getLong().getAsLong(), start).connect();
+				break;
+			case 21: // PING
+				send(new FramePong(frame.getLong().getAsLong()));
+				break;
+			default:
+				break;
+			}
+		}
+
+		private void onMessage(Frame frame) {
+			if (frame.getLoginSender().get().equals(login))
+				publicLatency.record(System.nanoTime() - Long.parseLong(frame.getMessage().get()));
+		}
+	}
+
+	/**
+	 * One side of a private connection, closed as soon as it is established
+	 */
+	private class TunnelEnd extends Endpoint {
+
+		private final long connectId;
+		private final Long start;
+
+		TunnelEnd(Worker worker, long connectId, Long start) throws IOException {
+			super(worker);
+			this.connectId = connectId;
+			this.start = start;
+		}
+
+		@Override
+		void onConnected() {
+			send(new FrameLoginPrivate(connectId));
+		}
+
+		@Override
+		void onFrame(Frame frame) throws IOException {
+			if (frame.getOpcode() != 10)
+				return;
+			if (start != null)
+				handshakeLatency.record(System.nanoTime() - start);
+			sc.close();
+		}
+	}
+
+	public void run(int seconds) throws InterruptedException {
+		var threads = new ArrayList<Thread>();
+		for (var i = 0; i < workers.size(); i++) {
+			var thread = new Thread(workers.get(i), "load-worker-" + i);
+			threads.add(thread);
+			thread.start();
+		}
+		var previousSent = 0L;
+		var previousReceived = 0L;
+		for (var second = 1; second <= seconds; second++) {
+			Thread.sleep(1_000);
+			var totalSent = sent[0].sum() + sent[1].sum() + sent[2].sum();
+			var totalReceived = received.sum();
+			System.out.printf("[%3ds] logged in %d/%d, sent %d op/s, received %d frames/s, failures %d%n", second,
+					loggedIn.sum(), nbConnections, totalSent - previousSent, totalReceived - previousReceived, failures.sum());
+			previousSent = totalSent;
+			previousReceived = totalReceived;
+		}
+		running = false;
+		for (var thread : threads)
+			thread.join();
+		System.out.println("public    sent " + sent[0].sum() + " : " + publicLatency.summary());
+		System.out.println("private   sent " + sent[1].sum() + " : " + privateLatency.summary());
+		System.out.println("handshake sent " + sent[2].sum() + " : " + handshakeLatency.summary());
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 2) {
+			usage();
+			return;
+		}
+		var server = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+		var nbConnections = args.length > 2 ? Integer.parseInt(args[2]) : 1_000;
+		var nbThreads = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		var rate = args.length > 4 ? Double.parseDouble(args[4]) : 1_000;
+		var seconds = args.length > 5 ? Integer.parseInt(args[5]) : 30;
+		var weights = new int[] { 80, 15, 5 };
+		if (args.length > 6) {
+			var tokens = args[6].split(":");
+			for (var i = 0; i < weights.length; i++)
+				weights[i] = Integer.parseInt(tokens[i]);
+		}
+		new LoadGenerator(server, nbConnections, nbThreads, rate, weights).run(seconds);
+	}
+
+	private static void usage() {
+		System.out.println("Usage : LoadGenerator host port [connections] [threads] [operations/s] [seconds] [public:private:handshake]");
+	}
+}
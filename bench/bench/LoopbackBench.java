@@ -0,0 +1,184 @@
+package bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import frames.Frame;
+import frames.FrameBatch;
+import frames.FrameLogin;
+import frames.FrameMessage;
+import readers.FrameReader;
+import readers.Reader;
+import server.ServerChat;
+
+/**
+ * Runs a ServerChat in this process and measures public message fan-out
+ * through the loopback interface.
+ *
+ * Some of the simulated clients send timestamped messages, each of them keeping
+ * at most WINDOW messages in flight. Every client records the delay between the
+ * sending of each message and its reception.
+ *
+ * Usage : LoopbackBench [clients] [senders] [messagesPerSender] [reactors]
+ */
+public class LoopbackBench {
+
+	static private int WINDOW = 64;
+	static private int BUFFER_SIZE = FrameBatch.MAX_DATA_BYTES;
+
+	private static class SimulatedClient {
+
+		private final String login;
+		private final SocketChannel sc;
+		private final ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE);
+		private final Reader reader = new FrameReader(bbin);
+		private final Semaphore window = new Semaphore(WINDOW);
+		private final CountDownLatch loggedIn = new CountDownLatch(1);
+		private final LatencyHistogram latencies;
+		private final LongAdder delivered;
+
+		private SimulatedClient(String login, InetSocketAddress server, LatencyHistogram latencies, LongAdder delivered) throws IOException {
+			this.login = login;
+			this.latencies = latencies;
+			this.delivered = delivered;
+			sc = SocketChannel.open(server);
+			var readerThread = new Thread(this::readLoop, login + "-reader");
+			readerThread.setDaemon(true);
+			readerThread.start();
+			send(new FrameLogin(login));
+		}
+
+		private void send(Frame frame) throws IOException {
+			var bb = frame.asBuffer().flip();
+			while (bb.hasRemaining())
+				sc.write(bb);
+		}
+
+		private void readLoop() {
+			try {
+				while (sc.read(bbin) != -1) {
+					Reader.ProcessStatus status;
+					while ((status = reader.process()) == Reader.ProcessStatus.DONE) {
+						onFrame((Frame) reader.get());
+						reader.reset();
+					}
+					if (status == Reader.ProcessStatus.ERROR)
+						throw new IllegalStateException("bad frame received by " + login);
+				}
+			} catch (IOException e) {
+				// the benchmark is over
+			}
+		}
+
+		private void onFrame(Frame frame) {
+			switch (frame.getOpcode()) {
+			case 1:
+				loggedIn.countDown();
+				break;
+			case 3:
+				onMessage(frame);
+				break;
+			case 17:
+				for (var message : ((FrameBatch) frame).getMessages())
+					onMessage(message);
+				break;
+			default:
+				break;
+			}
+		}
+
+		private void onMessage(Frame frame) {
+			latencies.record(System.nanoTime() - Long.parseLong(frame.getMessage().get()));
+			delivered.increment();
+			if (frame.getLoginSender().get().equals(login))
+				window.release();
+		}
+
+		private void sendMessages(int count) {
+			try {
+				for (var i = 0; i < count; i++) {
+					window.acquire();
+					send(new FrameMessage(login, Long.toString(System.nanoTime())));
+				}
+			} catch (IOException | InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		var nbClients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		var nbSenders = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		var messagesPerSender = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+		var nbReactors = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+		var port = freePort();
+		var server = new ServerChat(port, nbReactors);
+		server.setBatchWindow(0); // the simulated clients read BATCH frames
+		var serverThread = new Thread(() -> {
+			try {
+				server.launch();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, "acceptor");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		var latencies = new LatencyHistogram();
+		var delivered = new LongAdder();
+		var address = new InetSocketAddress("localhost", port);
+		var clients = new ArrayList<SimulatedClient>();
+		for (var i = 0; i < nbClients; i++)
+			clients.add(connect("bench" + i, address, latencies, delivered));
+		for (var client : clients)
+			client.loggedIn.await();
+
+		var expected = (long) nbClients * nbSenders * messagesPerSender;
+		var senders = new ArrayList<Thread>();
+		var start = System.nanoTime();
+		for (var client : clients.subList(0, nbSenders)) {
+			var sender = new Thread(() -> client.sendMessages(messagesPerSender), client.login + "-sender");
+			senders.add(sender);
+			sender.start();
+		}
+		for (var sender : senders)
+			sender.join();
+		while (delivered.sum() < expected)
+			Thread.sleep(1);
+		var elapsed = System.nanoTime() - start;
+
+		System.out.printf("%d clients, %d senders, %d reactors%n", nbClients, nbSenders, nbReactors);
+		System.out.printf("sent      %12.0f msg/s%n", nbSenders * messagesPerSender / (elapsed / 1e9));
+		System.out.printf("delivered %12.0f msg/s%n", expected / (elapsed / 1e9));
+		System.out.println("latency   " + latencies.summary());
+		for (var client : clients)
+			client.sc.close();
+	}
+
+	private static SimulatedClient connect(String login, InetSocketAddress address, LatencyHistogram latencies, LongAdder delivered) throws InterruptedException {
+		// the acceptor may not be started yet
+		for (var attempt = 0; ; attempt++) {
+			try {
+				return new SimulatedClient(login, address, latencies, delivered);
+			} catch (IOException e) {
+				if (attempt == 50)
+					throw new IllegalStateException("cannot connect to the server", e);
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	private static int freePort() throws IOException {
+		try (var socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package buffers;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Pool of direct buffers shared by the connections of a server or a client.
+ *
+ * Buffers are handed out in size classes, powers of two from 1 KiB to 1 MiB,
+ * carved out of direct slabs which are never freed: the off-heap memory of the
+ * pool grows up to its limit and is then reused. Once the limit is reached, and
+ * for larger requests, heap buffers are handed out instead.
+ *
+ * A buffer is acquired for an owner, typically a connection, which must release
+ * it exactly once when it is closed. The pool only keeps a weak reference to the
+ * owner: a buffer whose owner was garbage collected without releasing it is a leak,
+ * it is logged and put back in the pool the next time the pool needs memory.
+ *
+ * With -Dbuffers.trackStacks=true the stack trace of each acquisition is kept and
+ * logged with the leaks.
+ */
+public class BufferPool {
+
+	static private Logger logger = Logger.getLogger(BufferPool.class.getName());
+	static private int MIN_SHIFT = 10;
+	static private int MAX_SHIFT = 20;
+	static private int SLAB_SIZE = 64 * 1_024;
+	static private long LEAK_SCAN_PERIOD = 1_000_000_000L;
+	static private long DEFAULT_MAX_DIRECT_BYTES = 64L << 20;
+	static private boolean TRACK_STACKS = Boolean.getBoolean("buffers.trackStacks");
+
+	private static class Lease {
+		private final WeakReference<Object> owner;
+		private final int sizeClass; // -1 for a heap buffer
+		private final Throwable acquisition;
+
+		private Lease(Object owner, int sizeClass) {
+			this.owner = new WeakReference<>(owner);
+			this.sizeClass = sizeClass;
+			this.acquisition = TRACK_STACKS ? new Throwable("acquired by " + owner) : null;
+		}
+	}
+
+	private final long maxDirectBytes;
+	private final ArrayList<ConcurrentLinkedDeque<ByteBuffer>> freeLists = new ArrayList<>();
+	private final Map<ByteBuffer, Lease> leases = Collections.synchronizedMap(new IdentityHashMap<>());
+	private final AtomicLong directBytes = new AtomicLong();
+	private final AtomicLong lastLeakScan = new AtomicLong(System.nanoTime());
+	private final LongAdder inUseBytes = new LongAdder();
+	private final LongAdder acquired = new LongAdder();
+	private final LongAdder released = new LongAdder();
+	private final LongAdder heapFallbacks = new LongAdder();
+	private final LongAdder leaked = new LongAdder();
+
+	public BufferPool() {
+		this(DEFAULT_MAX_DIRECT_BYTES);
+	}
+
+	/**
+	 * @param maxDirectBytes maximum number of bytes of direct memory allocated by the pool
+	 */
+	public BufferPool(long maxDirectBytes) {
+		if (maxDirectBytes < 0)
+			throw new IllegalArgumentException("the direct memory limit must be positive");
+		this.maxDirectBytes = maxDirectBytes;
+		for (var shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++)
+			freeLists.add(new ConcurrentLinkedDeque<>());
+	}
+
+	/**
+	 * @param capacity minimal capacity of the buffer
+	 * @param owner the object responsible for releasing the buffer
+	 * @return a cleared buffer, direct if the pool has enough memory left
+	 */
+	public ByteBuffer acquire(int capacity, Object owner) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("negative capacity");
+		var sizeClass = sizeClassOf(capacity);
+		ByteBuffer bb = null;
+		if (sizeClass >= 0) {
+			bb = freeLists.get(sizeClass).pollFirst();
+			if (bb == null && reclaimLeaks(false) != 0)
+				bb = freeLists.get(sizeClass).pollFirst();
+			if (bb == null)
+				bb = allocateSlab(sizeClass);
+		}
+		if (bb == null) {
+			heapFallbacks.increment();
+			bb = ByteBuffer.allocate(sizeClass >= 0 ? 1 << (MIN_SHIFT + sizeClass) : capacity);
+			sizeClass = -1;
+		}
+		else
+			inUseBytes.add(bb.capacity());
+		leases.put(bb, new Lease(owner, sizeClass));
+		acquired.increment();
+		return bb;
+	}
+
+	/**
+	 * Gives a buffer back to the pool, the caller must not use it anymore.
+	 *
+	 * @param bb a buffer returned by acquire
+	 */
+	public void release(ByteBuffer bb) {
+		var lease = leases.remove(bb);
+		if (lease == null) {
+			logger.warning("Buffer released twice or not acquired from this pool");
+			return;
+		}
+		released.increment();
+		recycle(bb, lease);
+	}
+
+	/**
+	 * Puts back in the pool the buffers whose owner was garbage collected.
+	 *
+	 * @return the number of leaked buffers found
+	 */
+	public int reclaimLeaks() {
+		return reclaimLeaks(true);
+	}
+
+	private int reclaimLeaks(boolean force) {
+		var now = System.nanoTime();
+		var last = lastLeakScan.get();
+		if (!force && (now - last < LEAK_SCAN_PERIOD || !lastLeakScan.compareAndSet(last, now)))
+			return 0;
+		var leakedBuffers = new ArrayList<Map.Entry<ByteBuffer, Lease>>();
+		synchronized (leases) {
+			var iterator = leases.entrySet().iterator();
+			while (iterator.hasNext()) {
+				var entry = iterator.next();
+				if (entry.getValue().owner.get() == null) {
+					leakedBuffers.add(Map.entry(entry.getKey(), entry.getValue()));
+					iterator.remove();
+				}
+			}
+		}
+		for (var entry : leakedBuffers) {
+			var lease = entry.getValue();
+			if (lease.acquisition != null)
+				logger.warning("Buffer leaked : " + stackTraceOf(lease.acquisition));
+			leaked.increment();
+			recycle(entry.getKey(), lease);
+		}
+		if (!leakedBuffers.isEmpty() && !TRACK_STACKS)
+			logger.warning(leakedBuffers.size() + " buffers leaked, run with -Dbuffers.trackStacks=true to know where they were acquired");
+		return leakedBuffers.size();
+	}
+
+	private void recycle(ByteBuffer bb, Lease lease) {
+		if (lease.sizeClass < 0)
+			return;
+		inUseBytes.add(-bb.capacity());
+		freeLists.get(lease.sizeClass).addFirst(bb.clear());
+	}
+
+	/**
+	 * Allocates a new slab for a size class, keeps one of its buffers and puts the others in the pool.
+	 *
+	 * @return null if the pool would exceed its direct memory limit
+	 */
+	private ByteBuffer allocateSlab(int sizeClass) {
+		var size = 1 << (MIN_SHIFT + sizeClass);
+		var slabSize = Math.max(size, SLAB_SIZE);
+		if (directBytes.addAndGet(slabSize) > maxDirectBytes) {
+			directBytes.addAndGet(-slabSize);
+			return null;
+		}
+		var slab = ByteBuffer.allocateDirect(slabSize);
+		for (var offset = size; offset < slabSize; offset += size)
+			freeLists.get(sizeClass).addLast(slab.limit(offset + size).position(offset).slice());
+		return slab.limit(size).position(0).slice();
+	}
+
+	/**
+	 * @return the index of the smallest size class holding capacity bytes, -1 if it is too large
+	 */
+	private static int sizeClassOf(int capacity) {
+		if (capacity > 1 << MAX_SHIFT)
+			return -1;
+		var shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+		return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+	}
+
+	private static String stackTraceOf(Throwable throwable) {
+		var builder = new StringBuilder(throwable.getMessage());
+		for (var element : throwable.getStackTrace())
+			builder.append("\n\tat ").append(element);
+		return builder.toString();
+	}
+
+	/**
+	 * @return the number of bytes of direct memory allocated by the pool
+	 */
+	public long directBytes() {
+		return directBytes.get();
+	}
+
+	/**
+	 * @return the number of bytes of direct memory currently acquired
+	 */
+	public long inUseBytes() {
+		return inUseBytes.sum();
+	}
+
+	/**
+	 * @return the fraction of the direct memory of the pool currently acquired
+	 */
+	public double utilization() {
+		var allocated = directBytes();
+		return allocated == 0 ? 0 : (double) inUseBytes() / allocated;
+	}
+
+	/**
+	 * @return the number of buffers acquired and not yet released, heap buffers included
+	 */
+	public int outstanding() {
+		return leases.size();
+	}
+
+	public long acquiredCount() {
+		return acquired.sum();
+	}
+
+	public long releasedCount() {
+		return released.sum();
+	}
+
+	/**
+	 * @return the number of heap buffers handed out because the request was too large or the pool was full
+	 */
+	public long heapFallbackCount() {
+		return heapFallbacks.sum();
+	}
+
+	public long leakCount() {
+		return leaked.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("direct %d bytes, in use %d bytes (%.1f%%), outstanding %d, acquired %d, released %d, heap fallbacks %d, leaks %d",
+				directBytes(), inUseBytes(), 100 * utilization(), outstanding(), acquiredCount(), releasedCount(),
+				heapFallbackCount(), leakCount());
+	}
+}
@@ -9,10 +9,21 @@ import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import buffers.BufferPool;
 import frames.Frame;
+import frames.FrameBatch;
+import frames.FrameCluster;
+import frames.FrameCompressed;
+import frames.FrameCompressionAccepted;
+import frames.FrameCompressionRequest;
+import frames.FrameHistoryMessage;
+import frames.FrameHistoryRequest;
 import frames.FrameIdPrivate;
+import frames.FrameJoinRoom;
 import frames.FrameKoPrivate;
+import frames.FrameLeaveRoom;
 import frames.FrameLogin;
 import frames.FrameLoginAccepted;
 import frames.FrameLoginPrivate;
@@ -20,15 +31,21 @@ import frames.FrameLoginRefused;
 import frames.FrameMessage;
 import frames.FrameMessagePrivate;
 import frames.FrameOkPrivate;
+import frames.FramePing;
+import frames.FramePong;
 import frames.FrameRequestPrivate;
+import frames.FrameRoomMessage;
 import readers.FrameReader;
 import readers.Reader;
+import trace.Tracer;
 import visitors.PublicConnectionVisitor;
 
 public class ClientChat implements PublicConnectionVisitor {
 
 
-	static private int BUFFER_SIZE = 1_024;
+	static private int BUFFER_SIZE = FrameBatch.MAX_DATA_BYTES;
+	static private int DEFAULT_HISTORY = 20;
+	static private Tracer tracer = Tracer.forComponent("client");
 
 	//	static private Logger logger = Logger.getLogger(ClientChat.class.getName());
 
@@ -43,12 +60,19 @@ public class ClientChat implements PublicConnectionVisitor {
 	private FrameRequestPrivate requestPrivateReceived;
 	final private ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE);
 	final private ByteBuffer bbout = ByteBuffer.allocate(BUFFER_SIZE);
-	final private Queue<Frame> queue = new LinkedList<>();
+	final private Queue<ByteBuffer> queue = new LinkedList<>(); // frames encoded in read-mode, compressed if negotiated
 	private final BlockingQueue<Frame> blockingQueue = new ArrayBlockingQueue<>(100);
 	private boolean closed = false;
 	private final Reader reader = new FrameReader(bbin);
-	private final Map<String, String> privateConnections = new HashMap<>();
+	private final Map<String, List<String>> requestedFiles = new HashMap<>(); // waiting for a private connection
+	private final Map<String, PrivateConnection> privateConnections = new HashMap<>(); // opened as requester
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
 	private final String directory;
+	private final BufferPool buffers = new BufferPool();
+	private MappedFileCache mappedFiles;
+	private int history = DEFAULT_HISTORY;
+	private boolean compression;
+	private FrameCompressed.Codec codec; // once the server accepted the compression
 	
 
 	public ClientChat(String host, int port, String dirName) throws IOException {
@@ -68,6 +92,8 @@ public class ClientChat implements PublicConnectionVisitor {
 			while (!blockingQueue.isEmpty()) {
 				queueMessage(blockingQueue.poll());
 			}
+			for (Runnable task; (task = tasks.poll()) != null;)
+				task.run();
 			processSelectedKeys();
 			selectedKeys.clear();
 		}
@@ -76,33 +102,26 @@ public class ClientChat implements PublicConnectionVisitor {
 	private void processSelectedKeys() throws IOException {
 //		System.out.println(" [debug] processSelectedKeys");
 		for (SelectionKey key : selector.selectedKeys()) {
-			System.out.println(" [debug] processSelectedKeys boucle");
+			if (tracer.isEnabled(Tracer.Level.TRACE) && key.isValid())
+				tracer.event(Tracer.Level.TRACE, "ready", "connection", key == this.key ? "public" : "private",
+						"ops", key.readyOps());
 			if (key.isValid() && key.isConnectable()) {
-				System.out.println(" [debug] processSelectedKeys --> doConnect ");
 				if (key == this.key)
 					doConnect();
-				else {
-					System.out.println(" [debug] processSelectedKeys --> doConnect for private connections ");
+				else
 					((PrivateConnection) key.attachment()).doConnect();
-				}
 			}
 			if (key.isValid() && key.isWritable()) {
-				System.out.println(" [debug] processSelectedKeys --> doWrite ");
 				if (key == this.key)
 					doWrite();
-				else {
-					System.out.println(" [debug] processSelectedKeys --> doWrite for private connection ");
+				else
 					((PrivateConnection) key.attachment()).doWrite();
-				}
 			}
 			if (key.isValid() && key.isReadable()) {
-				System.out.println(" [debug] processSelectedKeys --> doRead");
 				if (key == this.key)
 					doRead();
-				else {
-					System.out.println(" [debug] processSelectedKeys --> doRead for private connection ");
+				else
 					((PrivateConnection) key.attachment()).doRead();
-				}
 			}
 		}
 	}
@@ -130,8 +149,17 @@ public class ClientChat implements PublicConnectionVisitor {
 		updateInterestOps();
 	}
 
+	/**
+	 * Encodes the frame, compressed once and for all if the server accepted the compression
+	 */
 	private void queueMessage(Frame frame) {
-		queue.add(frame);
+		var frameBuffer = frame.asBuffer().flip();
+		if (codec != null) {
+			var compressed = codec.compress(frameBuffer, FrameCompressed.MAX_CLIENT_DATA_BYTES);
+			if (compressed != null)
+				frameBuffer = compressed;
+		}
+		queue.add(frameBuffer);
 		processOut();
 		updateInterestOps();
 	}
@@ -156,11 +184,11 @@ public class ClientChat implements PublicConnectionVisitor {
 	private void processOut() {
 		//		System.out.println("processOut");
 		while (!queue.isEmpty()) {
-			var frameBuffer = queue.element().asBuffer();
-			if (bbout.remaining() < frameBuffer.capacity())
+			var frameBuffer = queue.element();
+			if (bbout.remaining() < frameBuffer.remaining())
 				return;
 			//			System.out.println("bbout position = " + bbout.position());
-			bbout.put(frameBuffer.flip());
+			bbout.put(frameBuffer);
 			//			System.out.println("bbout position = " + bbout.position());
 			queue.remove();
 		}
@@ -195,6 +223,18 @@ public class ClientChat implements PublicConnectionVisitor {
 	public static void main(String[] args) throws IOException {
 		try {
 			var client = new ClientChat(args[0], Integer.parseInt(args[1]), args[2]);
+			for (var i = 4; i < args.length; i++) {
+				if (args[i].startsWith("--mmap-cache="))
+					client.setMappedFiles(Integer.parseInt(args[i].substring("--mmap-cache=".length())));
+				else if (args[i].startsWith("--history="))
+					client.setHistory(Integer.parseInt(args[i].substring("--history=".length())));
+				else if (args[i].equals("--compress"))
+					client.setCompression(true);
+				else {
+					usage();
+					return;
+				}
+			}
 
 			new Thread(() -> {
 				client.blockingQueue.offer(new FrameLogin(client.login = args[3]));
@@ -235,8 +275,24 @@ public class ClientChat implements PublicConnectionVisitor {
 									
 								case '/':
 									target = tokens[0].substring(1);
-									frame = new FrameRequestPrivate(client.login, target);
-									client.privateConnections.put(target, tokens[1]);
+									client.fetch(target, List.of(tokens[1].trim().split("\\s+")));
+									frame = null;
+									break;
+
+								case '#':
+									frame = new FrameRoomMessage(client.login, tokens[0].substring(1), tokens[1]);
+									break;
+
+								case '+': // a single word joins a room, anything else is a message
+									frame = tokens.length == 1 && line.length() > 1
+											? new FrameJoinRoom(client.login, line.substring(1))
+											: new FrameMessage(client.login, line);
+									break;
+
+								case '-':
+									frame = tokens.length == 1 && line.length() > 1
+											? new FrameLeaveRoom(client.login, line.substring(1))
+											: new FrameMessage(client.login, line);
 									break;
 
 								default:
@@ -257,15 +313,74 @@ public class ClientChat implements PublicConnectionVisitor {
 
 			client.launch();
 
-		} catch (IndexOutOfBoundsException | NumberFormatException e) {
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
 			usage();
 		}
 	}
 
 
 
+	/**
+	 * Requests files to a client, on the private connection already opened with it if there is one.
+	 *
+	 * May be called from any thread.
+	 *
+	 * @param target
+	 * @param files
+	 */
+	private void fetch(String target, List<String> files) {
+		tasks.add(() -> {
+			var privateConnection = privateConnections.get(target);
+			if (privateConnection != null && privateConnection.isOpen()) {
+				try {
+					privateConnection.fetch(files);
+				} catch (IOException e) {
+					System.out.println(" >>> Unable to request files to " + target + " : " + e.getMessage());
+				}
+				return;
+			}
+			var pending = requestedFiles.get(target);
+			if (pending != null) { // the private connection is not open yet
+				pending.addAll(files);
+				return;
+			}
+			requestedFiles.put(target, new ArrayList<>(files));
+			queueMessage(new FrameRequestPrivate(login, target));
+		});
+		selector.wakeup();
+	}
+
+	/**
+	 * Serves the shared files from memory mappings, must be called before launch.
+	 *
+	 * @param maxMappings number of files kept mapped, 0 to send the files with transferTo
+	 */
+	public void setMappedFiles(int maxMappings) {
+		mappedFiles = maxMappings == 0 ? null : new MappedFileCache(maxMappings);
+	}
+
+	/**
+	 * Sets the number of past public messages asked to the server once logged in, must be called before launch.
+	 *
+	 * @param history 0 to ask for none
+	 */
+	public void setHistory(int history) {
+		if (history < 0)
+			throw new IllegalArgumentException("negative history");
+		this.history = history;
+	}
+
+	/**
+	 * Asks the server to compress the frames once logged in, must be called before launch.
+	 *
+	 * @param compression
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
 	private static void usage(){
-		System.out.println("Usage : ClientChat host port login directory");
+		System.out.println("Usage : ClientChat host port directory login [--mmap-cache=n] [--history=n] [--compress]");
 	}
 
 
@@ -293,23 +408,30 @@ public class ClientChat implements PublicConnectionVisitor {
 		var requester = frameIdPrivate.getLoginSender().get();
 		var target = frameIdPrivate.getLoginTarget().get();
 //		System.out.println(" [debug] received private id from server");
-		if (requester.equals(login))
-			new PrivateConnection(host, port, selector, target, frameIdPrivate.getLong().getAsLong(), directory, privateConnections.get(target));
+		if (requester.equals(login)) {
+			var files = requestedFiles.remove(target);
+			privateConnections.put(target, new PrivateConnection(host, port, selector, buffers, mappedFiles, target,
+					frameIdPrivate.getLong().getAsLong(), directory, files == null ? List.of() : files));
+		}
 		else
-			new PrivateConnection(host, port, selector, requester, frameIdPrivate.getLong().getAsLong(), directory);
+			new PrivateConnection(host, port, selector, buffers, mappedFiles, requester, frameIdPrivate.getLong().getAsLong(), directory);
 	}
 
 	@Override
 	public void visit(FrameKoPrivate frameKoPrivate) {
 		var target = frameKoPrivate.getLoginTarget().get();
 		System.out.println(" >>> " + target + " refused to establish a private connection with you. What a mean person.");
-		privateConnections.remove(target);
+		requestedFiles.remove(target);
 	}
 
 	@Override
 	public void visit(FrameLoginAccepted frameLoginAccepted) {
 		loginAccepted = true;
 		System.out.println(" >>> You enter the chat.");
+		if (compression)
+			queueMessage(new FrameCompressionRequest(FrameCompressed.DEFLATE));
+		if (history > 0)
+			queueMessage(FrameHistoryRequest.last(history));
 	}
 
 	@Override
@@ -328,6 +450,80 @@ public class ClientChat implements PublicConnectionVisitor {
 		// DO NOTHING
 	}
 
+	@Override
+	public void visit(FrameHistoryRequest frameHistoryRequest) {
+		// DO NOTHING
+	}
+
+	@Override
+	public void visit(FrameHistoryMessage frameHistoryMessage) {
+		System.out.println(frameHistoryMessage);
+	}
+
+	@Override
+	public void visit(FrameJoinRoom frameJoinRoom) {
+		// DO NOTHING
+	}
+
+	@Override
+	public void visit(FrameLeaveRoom frameLeaveRoom) {
+		// DO NOTHING
+	}
+
+	@Override
+	public void visit(FrameRoomMessage frameRoomMessage) {
+		System.out.println(frameRoomMessage);
+	}
+
+	@Override
+	public void visit(FrameCluster frameCluster) {
+		// DO NOTHING
+	}
+
+	@Override
+	public void visit(FrameBatch frameBatch) {
+		for (var frameMessage : frameBatch.getMessages())
+			visit(frameMessage);
+	}
+
+	@Override
+	public void visit(FrameCompressionRequest frameCompressionRequest) {
+		// DO NOTHING
+	}
+
+	@Override
+	public void visit(FrameCompressionAccepted frameCompressionAccepted) {
+		if (compression && frameCompressionAccepted.getAlgorithm().equals(FrameCompressed.DEFLATE))
+			codec = new FrameCompressed.Codec();
+	}
+
+	@Override
+	public void visit(FrameCompressed frameCompressed) {
+		if (codec == null) {
+			silentlyClose();
+			return;
+		}
+		List<Frame> frames;
+		try {
+			frames = FrameReader.readInflated(codec.inflate(frameCompressed));
+		} catch (IllegalArgumentException e) {
+			silentlyClose();
+			return;
+		}
+		for (var frame : frames)
+			frame.accept(this);
+	}
+
+	@Override
+	public void visit(FramePing framePing) {
+		queueMessage(new FramePong(framePing.getLong().getAsLong()));
+	}
+
+	@Override
+	public void visit(FramePong framePong) {
+		// DO NOTHING
+	}
+
 	@Override
 	public void visit(FrameRequestPrivate frameRequestPrivate) {
 		System.out.println(" >>> " + frameRequestPrivate.getLoginSender().get() + " would like to establish a private connection with you.\n"
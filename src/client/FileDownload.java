@@ -0,0 +1,132 @@
+package client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * File requested on a private connection, written to disk byte for byte as it is received.
+ *
+ * The bytes are written to a .part file next to the final file, which is moved into
+ * place once the whole file is received. If the connection is lost, the .part file is
+ * kept and the next download of the same file only asks for the missing bytes with a
+ * Range request.
+ */
+class FileDownload implements Closeable {
+
+	private final String file;
+	private final Path target;
+	private final Path part;
+	private FileChannel channel;
+	private boolean complete;
+
+	/**
+	 * @param directory where the file is saved
+	 * @param file the name of the file on the peer
+	 * @throws InvalidPathException if the name is not a valid file name
+	 */
+	FileDownload(Path directory, String file) {
+		this.file = file;
+		var path = Paths.get(file).getFileName(); // null for a root
+		var name = path == null ? "" : path.toString();
+		if (name.isEmpty() || name.equals(".") || name.equals("..")) // would be the directory or its parent
+			throw new InvalidPathException(file, "no file name");
+		this.target = directory.resolve(name);
+		this.part = directory.resolve(name + ".part");
+	}
+
+	String getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the request for the file, or for its missing part if a previous download was interrupted
+	 * @throws IOException
+	 */
+	String request() throws IOException {
+		var offset = Files.exists(part) ? Files.size(part) : 0;
+		return "GET " + file + " HTTP/1.1\r\n"
+				+ "Host: localhost\r\n"
+				+ (offset > 0 ? "Range: bytes=" + offset + "-\r\n" : "")
+				+ "\r\n";
+	}
+
+	/**
+	 * Prepares the writing of the body of a response.
+	 *
+	 * @param header
+	 * @return true if the body of the response is a part of the file, which must be given to write
+	 * @throws IOException
+	 */
+	boolean start(HTTPHeader header) throws IOException {
+		switch (header.getCode()) {
+		case 200:
+			channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			return true;
+		case 206:
+			var range = header.getContentRange();
+			var received = Files.exists(part) ? Files.size(part) : 0;
+			if (range == null || range[0] < 0 || range[0] > received)
+				throw new HTTPException("Unexpected range in response:\n" + header.getResponse());
+			channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			channel.truncate(range[0]).position(range[0]);
+			return true;
+		case 416: // the range starts at the end of the file if it was already entirely received
+			range = header.getContentRange();
+			complete = range != null && Files.exists(part) && Files.size(part) == range[2];
+			if (!complete) // the file changed, the next download starts over
+				Files.deleteIfExists(part);
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @param data bytes of the file in read-mode
+	 * @throws UncheckedIOException if the bytes cannot be written to disk
+	 */
+	void write(ByteBuffer data) {
+		try {
+			while (data.hasRemaining())
+				channel.write(data);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return true if the file was entirely received, once the body of the response is read
+	 */
+	boolean isComplete() {
+		return channel != null || complete;
+	}
+
+	/**
+	 * Moves the received file into place, must be called once the body is entirely written.
+	 *
+	 * @return the path of the file
+	 * @throws IOException
+	 */
+	Path finish() throws IOException {
+		close();
+		Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+		return target;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null)
+			channel.close();
+		channel = null;
+	}
+}
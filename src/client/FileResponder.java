@@ -0,0 +1,84 @@
+package client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Body of a response streamed from a file to a private connection.
+ *
+ * The file is never loaded on the heap: each call to writeTo sends at most one chunk,
+ * and only what the socket accepts is consumed. A slow peer therefore only delays
+ * its own response and the rest of the event loop keeps running.
+ */
+abstract class FileResponder implements Closeable {
+
+	static private int CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * Sends a part of a file with FileChannel.transferTo, which lets the kernel copy it to the socket.
+	 *
+	 * @param file closed with the responder
+	 * @param position first byte of the file to send
+	 * @param end position following the last byte to send
+	 */
+	static FileResponder transfer(FileChannel file, long position, long end) {
+		return new FileResponder() {
+			private long current = position;
+
+			@Override
+			boolean writeTo(WritableByteChannel channel) throws IOException {
+				if (current < end) {
+					if (current >= file.size())
+						throw new IOException("File truncated while it was sent");
+					current += file.transferTo(current, Math.min(CHUNK_SIZE, end - current), channel);
+				}
+				return current >= end;
+			}
+
+			@Override
+			public void close() throws IOException {
+				file.close();
+			}
+		};
+	}
+
+	/**
+	 * Sends a part of a mapped file.
+	 *
+	 * @param mapped view of the bytes to send in read-mode, its position is consumed
+	 */
+	static FileResponder mapped(ByteBuffer mapped) {
+		return new FileResponder() {
+			@Override
+			boolean writeTo(WritableByteChannel channel) throws IOException {
+				if (mapped.hasRemaining()) {
+					var limit = mapped.limit();
+					mapped.limit(Math.min(limit, mapped.position() + CHUNK_SIZE));
+					try {
+						channel.write(mapped);
+					} finally {
+						mapped.limit(limit);
+					}
+				}
+				return !mapped.hasRemaining();
+			}
+
+			@Override
+			public void close() {
+				// the mapping belongs to the cache
+			}
+		};
+	}
+
+	/**
+	 * Writes the next chunk of the body, as much of it as the channel accepts.
+	 *
+	 * @param channel
+	 * @return true once the whole body has been written
+	 * @throws IOException
+	 */
+	abstract boolean writeTo(WritableByteChannel channel) throws IOException;
+}
@@ -0,0 +1,139 @@
+package client;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+import readers.HttpLineReader;
+import readers.Reader;
+
+/**
+ * Non-blocking reader of the body of an HTTP message, with a Content-Length
+ * or in chunks.
+ *
+ * The bytes of the body are never accumulated: each part found in the buffer is
+ * handed to a sink as a read-mode view that the sink must consume entirely before
+ * returning. A message with neither a Content-Length nor chunks has an empty body.
+ * get() returns the length of the body, and reset() prepares the reader for
+ * another body with the same header.
+ */
+public class HTTPBodyReader implements Reader {
+
+	private enum State { DATA, CHUNK_SIZE, CHUNK_END, TRAILER, DONE, ERROR };
+
+	private final ByteBuffer bb;
+	private final HttpLineReader lineReader;
+	private final Consumer<ByteBuffer> sink;
+	private final boolean chunked;
+	private final long contentLength;
+	private State state;
+	private long remaining;
+	private long length;
+
+	/**
+	 * @param bb the buffer in write-mode
+	 * @param header the header of the message
+	 * @param sink receives the parts of the body
+	 * @throws HTTPException if the Content-Length is invalid
+	 */
+	public HTTPBodyReader(ByteBuffer bb, HTTPHeader header, Consumer<ByteBuffer> sink) throws HTTPException {
+		this.bb = bb;
+		this.lineReader = new HttpLineReader(bb);
+		this.sink = sink;
+		this.chunked = header.isChunkedTransfer();
+		this.contentLength = chunked ? 0 : Math.max(header.getContentLength(), 0);
+		reset();
+	}
+
+	@Override
+	public ProcessStatus process() {
+		if (state == State.DONE || state == State.ERROR)
+			throw new IllegalStateException();
+		while (true) {
+			if (state == State.DATA) {
+				if (!consumeData())
+					return ProcessStatus.REFILL;
+				if (!chunked) {
+					state = State.DONE;
+					return ProcessStatus.DONE;
+				}
+				state = State.CHUNK_END;
+				continue;
+			}
+			var status = lineReader.process();
+			if (status != ProcessStatus.DONE) {
+				if (status == ProcessStatus.ERROR)
+					state = State.ERROR;
+				return status;
+			}
+			var line = (String) lineReader.get();
+			lineReader.reset();
+			switch (state) {
+			case CHUNK_SIZE:
+				try {
+					remaining = Long.parseLong(line.split(";", 2)[0].trim(), 16);
+				} catch (NumberFormatException e) {
+					remaining = -1;
+				}
+				if (remaining < 0) {
+					state = State.ERROR;
+					return ProcessStatus.ERROR;
+				}
+				state = remaining == 0 ? State.TRAILER : State.DATA;
+				break;
+			case CHUNK_END:
+				if (!line.isEmpty()) {
+					state = State.ERROR;
+					return ProcessStatus.ERROR;
+				}
+				state = State.CHUNK_SIZE;
+				break;
+			case TRAILER:
+				if (line.isEmpty()) {
+					state = State.DONE;
+					return ProcessStatus.DONE;
+				}
+				break;
+			default:
+				throw new AssertionError();
+			}
+		}
+	}
+
+	/**
+	 * Hands the bytes of the current chunk available in bb to the sink
+	 *
+	 * @return true if the chunk is complete
+	 */
+	private boolean consumeData() {
+		bb.flip();
+		try {
+			var n = (int) Math.min(bb.remaining(), remaining);
+			if (n != 0) {
+				var data = bb.slice();
+				data.limit(n);
+				sink.accept(data);
+				bb.position(bb.position() + n);
+				remaining -= n;
+				length += n;
+			}
+			return remaining == 0;
+		} finally {
+			bb.compact();
+		}
+	}
+
+	@Override
+	public Object get() {
+		if (state != State.DONE)
+			throw new IllegalStateException();
+		return length;
+	}
+
+	@Override
+	public void reset() {
+		lineReader.reset();
+		state = chunked ? State.CHUNK_SIZE : State.DATA;
+		remaining = contentLength;
+		length = 0;
+	}
+}
@@ -23,13 +23,17 @@ public class HTTPHeader {
     private final String response;
     private final String version;
     private final int code;
+    private final String method;
+    private final String target;
     private final Map<String, String> fields;
 
 
-    private HTTPHeader(String response,String version,int code,Map<String, String> fields) throws HTTPException {
+    private HTTPHeader(String response,String version,int code,String method,String target,Map<String, String> fields) throws HTTPException {
         this.response = response;
         this.version = version;
         this.code = code;
+        this.method = method;
+        this.target = target;
         this.fields = Collections.unmodifiableMap(fields);
     }
     
@@ -49,7 +53,22 @@ public class HTTPHeader {
         Map<String,String> fieldsCopied = new HashMap<>();
         for (String s : fields.keySet())
             fieldsCopied.put(s,fields.get(s).trim());
-        return new HTTPHeader(response,version,code,fieldsCopied);
+        return new HTTPHeader(response,version,code,null,null,fieldsCopied);
+    }
+
+    /**
+     * Same as create but for the header of a request, whose code is 0
+     */
+    public static HTTPHeader createRequest(String request, Map<String,String> fields) throws HTTPException {
+        String[] tokens = request.split(" ");
+        // Treatment of the request line
+        ensure(tokens.length == 3, "Badly formed request:\n" + request);
+        String version = tokens[2];
+        ensure(HTTPHeader.SUPPORTED_VERSIONS.contains(version), "Unsupported version in request:\n" + request);
+        Map<String,String> fieldsCopied = new HashMap<>();
+        for (String s : fields.keySet())
+            fieldsCopied.put(s,fields.get(s).trim());
+        return new HTTPHeader(request,version,0,tokens[0],tokens[1],fieldsCopied);
     }
 
     public String getResponse() {
@@ -64,6 +83,20 @@ public class HTTPHeader {
         return code;
     }
 
+    /**
+     * @return the method of a request, null for a response
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the target of a request, null for a response
+     */
+    public String getTarget() {
+        return target;
+    }
+
     public Map<String, String> getFields() {
         return fields;
     }
@@ -73,18 +106,68 @@ public class HTTPHeader {
      *         -1 if the field does not exists
      * @throws HTTPError when the value of Content-Length is not a number
      */
-    public int getContentLength() throws HTTPException {
+    public long getContentLength() throws HTTPException {
         String s = fields.get("Content-Length");
         if (s == null) return -1;
         else {
             try {
-                return Integer.valueOf(s.trim());
+                return Long.parseLong(s.trim());
             } catch (NumberFormatException e) {
                 throw new HTTPException("Invalid Content-Length field value :\n" + s);
             }
         }
     }
 
+    /**
+     * @return the first position, the last position and the size of the Content-Range field,
+     *         the positions are -1 if the field reports an unsatisfied range,
+     *         null if the field does not exist
+     * @throws HTTPException when the value of Content-Range is ill-formed
+     */
+    public long[] getContentRange() throws HTTPException {
+        String s = fields.get("Content-Range");
+        if (s == null) return null;
+        try {
+            String[] tokens = s.trim().split("[ /]");
+            ensure(tokens.length == 3 && tokens[0].equals("bytes"), "Invalid Content-Range field value :\n" + s);
+            long size = Long.parseLong(tokens[2]);
+            if (tokens[1].equals("*"))
+                return new long[]{-1, -1, size};
+            String[] bounds = tokens[1].split("-");
+            ensure(bounds.length == 2, "Invalid Content-Range field value :\n" + s);
+            return new long[]{Long.parseLong(bounds[0]), Long.parseLong(bounds[1]), size};
+        } catch (NumberFormatException e) {
+            throw new HTTPException("Invalid Content-Range field value :\n" + s);
+        }
+    }
+
+    /**
+     * @param size the size of the requested resource
+     * @return the first position and the position following the last one of the byte range
+     *         requested by the Range field, clipped to the size of the resource. The range is
+     *         empty if it cannot be satisfied. null if the field does not exist, is ill-formed
+     *         or requests several ranges, in which case the whole resource should be sent.
+     */
+    public long[] getRange(long size) {
+        String s = fields.get("Range");
+        if (s == null || !s.startsWith("bytes=") || s.contains(","))
+            return null;
+        String[] bounds = s.substring("bytes=".length()).trim().split("-", 2);
+        if (bounds.length != 2)
+            return null;
+        try {
+            if (bounds[0].isEmpty()) // the last bytes
+                return new long[]{Math.max(size - Long.parseLong(bounds[1]), 0), size};
+            long first = Long.parseLong(bounds[0]);
+            long end = bounds[1].isEmpty() ? Long.MAX_VALUE : Long.parseLong(bounds[1]) + 1;
+            if (first < 0 || end <= first)
+                return null;
+            return new long[]{first, Math.max(first, Math.min(end, size))};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     /**
      * @return the Content-Type
      *         null if there is no Content-Type field
@@ -0,0 +1,92 @@
+package client;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import readers.HttpLineReader;
+import readers.Reader;
+
+/**
+ * Non-blocking reader of the header of an HTTP request or response.
+ *
+ * The header is read line by line from the buffer, and its parsing resumes
+ * where it stopped when more bytes are available. Nothing is read from the
+ * socket, so a peer sending its header slowly never blocks the event loop.
+ */
+public class HTTPHeaderReader implements Reader {
+
+	private enum State { FIRST_LINE, FIELDS, DONE, ERROR };
+
+	static private int MAX_FIELDS = 100;
+
+	private final HttpLineReader lineReader;
+	private final boolean request;
+	private final HashMap<String, String> fields = new HashMap<>();
+	private State state = State.FIRST_LINE;
+	private String firstLine;
+	private HTTPHeader header;
+
+	/**
+	 * @param bb the buffer in write-mode
+	 * @param request true to read the header of a request, false for a response
+	 */
+	public HTTPHeaderReader(ByteBuffer bb, boolean request) {
+		this.lineReader = new HttpLineReader(bb);
+		this.request = request;
+	}
+
+	@Override
+	public ProcessStatus process() {
+		if (state == State.DONE || state == State.ERROR)
+			throw new IllegalStateException();
+		while (true) {
+			var status = lineReader.process();
+			if (status != ProcessStatus.DONE) {
+				if (status == ProcessStatus.ERROR)
+					state = State.ERROR;
+				return status;
+			}
+			var line = (String) lineReader.get();
+			lineReader.reset();
+			if (state == State.FIRST_LINE) {
+				firstLine = line;
+				state = State.FIELDS;
+			}
+			else if (!line.isEmpty()) {
+				var tokens = line.split(":", 2);
+				if (tokens.length == 2)
+					fields.merge(tokens[0].trim(), tokens[1].trim(), (s1, s2) -> s1 + ";" + s2);
+				if (fields.size() > MAX_FIELDS) {
+					state = State.ERROR;
+					return ProcessStatus.ERROR;
+				}
+			}
+			else {
+				try {
+					header = request ? HTTPHeader.createRequest(firstLine, fields) : HTTPHeader.create(firstLine, fields);
+				} catch (HTTPException e) {
+					state = State.ERROR;
+					return ProcessStatus.ERROR;
+				}
+				state = State.DONE;
+				return ProcessStatus.DONE;
+			}
+		}
+	}
+
+	@Override
+	public Object get() {
+		if (state != State.DONE)
+			throw new IllegalStateException();
+		return header;
+	}
+
+	@Override
+	public void reset() {
+		state = State.FIRST_LINE;
+		lineReader.reset();
+		fields.clear();
+		firstLine = null;
+		header = null;
+	}
+}
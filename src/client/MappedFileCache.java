@@ -0,0 +1,95 @@
+package client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+
+/**
+ * Memory mappings of the files served on private connections, kept for the
+ * files requested again and again.
+ *
+ * At most maxMappings files and MAX_MAPPED_BYTES bytes are mapped, the least
+ * recently requested mappings are evicted first. A mapping is reused only if
+ * the size and the modification time of the file did not change. The JDK gives
+ * no way to unmap a file, an evicted mapping is unmapped when it is garbage collected.
+ *
+ * Used by the selector thread of the client only.
+ */
+class MappedFileCache {
+
+	static private long MAX_MAPPED_BYTES = 1L << 30;
+
+	private static class Mapping {
+		private final long size;
+		private final FileTime lastModified;
+		private final MappedByteBuffer buffer;
+
+		private Mapping(long size, FileTime lastModified, MappedByteBuffer buffer) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.buffer = buffer;
+		}
+	}
+
+	private final int maxMappings;
+	private final LinkedHashMap<Path, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+	private long mappedBytes;
+	private long hits;
+	private long misses;
+
+	/**
+	 * @param maxMappings maximum number of files mapped at the same time
+	 */
+	MappedFileCache(int maxMappings) {
+		if (maxMappings < 1)
+			throw new IllegalArgumentException("at least one mapping is needed");
+		this.maxMappings = maxMappings;
+	}
+
+	/**
+	 * @param path a regular file
+	 * @return a view of the whole file in read-mode, null if the file is too large to be mapped
+	 * @throws IOException
+	 */
+	ByteBuffer get(Path path) throws IOException {
+		var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		var mapping = mappings.get(path);
+		if (mapping != null && mapping.size == attributes.size() && mapping.lastModified.equals(attributes.lastModifiedTime())) {
+			hits++;
+			return mapping.buffer.duplicate();
+		}
+		misses++;
+		if (mapping != null)
+			remove(path);
+		if (attributes.size() > Math.min(MAX_MAPPED_BYTES, Integer.MAX_VALUE))
+			return null;
+		MappedByteBuffer buffer;
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) { // the mapping outlives the channel
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, attributes.size());
+		}
+		mappings.put(path, new Mapping(attributes.size(), attributes.lastModifiedTime(), buffer));
+		mappedBytes += attributes.size();
+		var iterator = mappings.entrySet().iterator();
+		while (mappings.size() > maxMappings || mappedBytes > MAX_MAPPED_BYTES) {
+			mappedBytes -= iterator.next().getValue().size;
+			iterator.remove();
+		}
+		return buffer.duplicate();
+	}
+
+	private void remove(Path path) {
+		mappedBytes -= mappings.remove(path).size;
+	}
+
+	@Override
+	public String toString() {
+		return mappings.size() + " files mapped (" + mappedBytes + " bytes), " + hits + " hits, " + misses + " misses";
+	}
+}
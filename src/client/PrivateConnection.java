@@ -1,46 +1,73 @@
 package client;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.logging.Logger;
 
+import buffers.BufferPool;
 import frames.Frame;
 import frames.FrameEstablished;
 import frames.FrameLoginPrivate;
 import frames.StringToBbManager;
 import readers.FrameReader;
 import readers.Reader;
+import trace.Tracer;
 import visitors.PrivateConnectionVisitor;
 
 class PrivateConnection implements PrivateConnectionVisitor {
 
 	static private Logger logger = Logger.getLogger(PrivateConnection.class.getName());
+	static private Tracer tracer = Tracer.forComponent("private");
 	static private int BUFFER_SIZE = 1_024;
 
 	private SelectionKey key;
 	private SocketChannel sc;
-	final private ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE);
-	final private ByteBuffer bbout = ByteBuffer.allocate(BUFFER_SIZE);
-	private final Reader reader = new FrameReader(bbin);
+	final private BufferPool buffers;
+	final private ByteBuffer bbin;
+	final private ByteBuffer bbout;
+	private final Reader reader;
 	private boolean closed = false;
+	private boolean released = false;
 	private boolean privateConnectionEstablished;
 	private final String distantClient;
 	private final long connectId;
 	private LinkedList<ByteBuffer> queue = new LinkedList<>();
 	private final String directory;
-	private String file;
+	private boolean requester;
+	private final MappedFileCache mappedFiles;
+	private FileResponder responder;
+	private HTTPHeaderReader headerReader;
+	private HTTPBodyReader bodyReader;
+	private final ArrayList<String> pendingFiles = new ArrayList<>(); // requested before the connection is open
+	private final ArrayDeque<FileDownload> downloads = new ArrayDeque<>(); // requested, in the order of the responses
 
-	public PrivateConnection(String host, int port, Selector selector, String distantClient, long connectId, String directory) {
+	/**
+	 * @param mappedFiles the cache of the mappings of the served files, null to send them with transferTo
+	 */
+	public PrivateConnection(String host, int port, Selector selector, BufferPool buffers, MappedFileCache mappedFiles,
+			String distantClient, long connectId, String directory) {
+		this.buffers = buffers;
+		this.mappedFiles = mappedFiles;
+		this.bbin = buffers.acquire(BUFFER_SIZE, this);
+		this.bbout = buffers.acquire(BUFFER_SIZE, this);
+		this.reader = new FrameReader(bbin);
 		this.distantClient = distantClient;
 		this.connectId = connectId;
 		this.directory = directory;
@@ -56,22 +83,26 @@ class PrivateConnection implements PrivateConnectionVisitor {
 		}
 	}
 
-	public PrivateConnection(String host, int port, Selector selector, String target, long connectId, String directory,
-			String file) {
-		this(host, port, selector, target, connectId, directory);
-		this.file = file;
+	/**
+	 * Private connection of the requester of files, all requested as soon as the connection is open
+	 *
+	 * @param files the names of the files on the target
+	 */
+	public PrivateConnection(String host, int port, Selector selector, BufferPool buffers, MappedFileCache mappedFiles,
+			String target, long connectId, String directory, List<String> files) {
+		this(host, port, selector, buffers, mappedFiles, target, connectId, directory);
+		this.requester = true;
+		pendingFiles.addAll(files);
 	}
 
 	private void updateInterestOps() {
+		if (!key.isValid())
+			return;
 		var interestOps = 0;
-		if (!closed && bbin.hasRemaining()) {
-			System.out.println(" [debug] OP_______READ ");
+		if (!closed && bbin.hasRemaining())
 			interestOps = SelectionKey.OP_READ;
-		}
-		if (bbout.position() != 0) {
-			System.out.println(" [debug] OP_______WRITE ");
+		if (bbout.position() != 0 || responder != null)
 			interestOps |= SelectionKey.OP_WRITE;
-		}
 		if (interestOps == 0)
 			silentlyClose();
 		else
@@ -91,37 +122,178 @@ class PrivateConnection implements PrivateConnectionVisitor {
 				case REFILL:
 					return;
 				}
-			else if (file == null) { // if client is target
-				var httpReader = new HTTPReader(sc, bbin);
-				var request = httpReader.readHeader().getResponse();
-				var response = new StringBuilder();
+			else if (!requester) { // if client is target
+				if (responder != null) // the next request waits for the end of the current response
+					return;
+				switch (headerReader.process()) {
+				case DONE:
+					respond((HTTPHeader) headerReader.get());
+					headerReader.reset();
+					break;
+				case ERROR:
+					silentlyClose();
+				case REFILL:
+					return;
+				}
+			}
+			else if (bodyReader == null) // if client is requester
+				switch (headerReader.process()) {
+				case DONE:
+					receive((HTTPHeader) headerReader.get());
+					headerReader.reset();
+					break;
+				case ERROR:
+					silentlyClose();
+				case REFILL:
+					return;
+				}
+			else {
+				Reader.ProcessStatus status;
 				try {
-					var tmp = new Object() { ByteBuffer bb = ByteBuffer.allocate(2_048); };
-					Files.lines(Paths.get(directory + "/" + request.split(" ")[1]))
-					.forEach(l -> {
-						var encodedLine = StandardCharsets.UTF_8.encode(l);
-						if (tmp.bb.remaining() < encodedLine.capacity())
-							tmp.bb = ByteBuffer.allocate(tmp.bb.capacity()*2).put(tmp.bb.flip());
-						tmp.bb.put(encodedLine);
-					});
-					response.append("HTTP/1.1 200 OK\r\n")
-					.append("Date: ").append(new Date()).append("\r\n")
-					.append("Content-Length: ").append(tmp.bb.flip().remaining()).append("\r\n")
-					.append("Content-Type: text/html;charset=UTF-8\r\n\r\n")
-					.append(StandardCharsets.UTF_8.decode(tmp.bb));
-				} catch (InvalidPathException | IndexOutOfBoundsException e) { // if the file does not exist or the request is ill-formed.
-					response.append("HTTP/1.1 404 KO\r\n\r\n");
+					status = bodyReader.process();
+				} catch (UncheckedIOException e) { // the file cannot be written
+					throw e.getCause();
 				}
-				queueMessage(response.toString());
+				switch (status) {
+				case DONE:
+					received();
+					break;
+				case ERROR:
+					silentlyClose();
+				case REFILL:
+					return;
+				}
+			}
+	}
+
+	/**
+	 * Queues the header of the response to a GET request and prepares its body,
+	 * which is streamed from the file, or from its mapping if mapped files are
+	 * enabled, by doWrite once the header is sent.
+	 *
+	 * A request with a single byte range in its Range field only gets this part
+	 * of the file.
+	 *
+	 * @param request
+	 */
+	private void respond(HTTPHeader request) {
+		Path path;
+		long size;
+		ByteBuffer mapped;
+		try {
+			var root = Paths.get(directory).toAbsolutePath().normalize();
+			path = root.resolve(request.getTarget().replaceFirst("^/+", "")).normalize();
+			if (!request.getMethod().equals("GET") || !path.startsWith(root) || !Files.isRegularFile(path))
+				throw new NoSuchFileException(request.getTarget());
+			mapped = mappedFiles == null ? null : mappedFiles.get(path);
+			size = mapped != null ? mapped.remaining() : Files.size(path);
+		} catch (IOException | InvalidPathException e) { // if the file does not exist or the request is ill-formed.
+			queueMessage("HTTP/1.1 404 KO\r\n\r\n");
+			return;
+		}
+		var range = request.getRange(size);
+		if (range != null && range[0] == range[1]) {
+			queueMessage("HTTP/1.1 416 Range Not Satisfiable\r\n"
+					+ "Content-Range: bytes */" + size + "\r\n"
+					+ "Content-Length: 0\r\n\r\n");
+			return;
+		}
+		var start = range == null ? 0 : range[0];
+		var end = range == null ? size : range[1];
+		FileResponder body;
+		if (mapped != null)
+			body = FileResponder.mapped(mapped.position((int) start).limit((int) end));
+		else
+			try {
+				body = FileResponder.transfer(FileChannel.open(path, StandardOpenOption.READ), start, end);
+			} catch (IOException e) {
+				queueMessage("HTTP/1.1 404 KO\r\n\r\n");
+				return;
+			}
+		queueMessage((range == null ? "HTTP/1.1 200 OK\r\n" : "HTTP/1.1 206 Partial Content\r\n")
+				+ "Date: " + new Date() + "\r\n"
+				+ "Accept-Ranges: bytes\r\n"
+				+ (range == null ? "" : "Content-Range: bytes " + start + "-" + (end - 1) + "/" + size + "\r\n")
+				+ "Content-Length: " + (end - start) + "\r\n"
+				+ "Content-Type: " + contentTypeOf(path) + "\r\n\r\n");
+		responder = body;
+		updateInterestOps();
+	}
+
+	/**
+	 * Prepares the reading of the body of a response, written to disk if it is a part of the file
+	 *
+	 * @param header
+	 * @throws IOException
+	 */
+	private void receive(HTTPHeader header) throws IOException {
+		var download = downloads.peek();
+		if (download == null)
+			throw new HTTPException("Response to no request:\n" + header.getResponse());
+		if (download.start(header))
+			bodyReader = new HTTPBodyReader(bbin, header, download::write);
+		else {
+			if (!download.isComplete())
+				System.out.println(header);
+			bodyReader = new HTTPBodyReader(bbin, header, data -> data.position(data.limit()));
+		}
+	}
+
+	private void received() throws IOException {
+		var download = downloads.remove();
+		if (download.isComplete())
+			System.out.println(" >>> " + download.getFile() + " received from " + distantClient + ", saved in " + download.finish() + ".");
+		bodyReader = null;
+	}
+
+	/**
+	 * Requests files to the target, after the files already requested.
+	 *
+	 * The requests are pipelined: they are all sent at once and the responses
+	 * are received in the same order.
+	 *
+	 * @param files the names of the files on the target
+	 * @throws IOException
+	 */
+	void fetch(List<String> files) throws IOException {
+		if (!sc.isConnected()) { // requested by doConnect
+			pendingFiles.addAll(files);
+			return;
+		}
+		for (var file : files) {
+			FileDownload download = null;
+			try {
+				if (file != null)
+					download = new FileDownload(Paths.get(directory), file);
+			} catch (InvalidPathException e) {
+				// reported below
 			}
-			else { // if client is requester
-				var httpReader = new HTTPReader(sc, bbin);
-				var header = httpReader.readHeader();
-				if (header.getCode() == 200)
-					System.out.println(header.getCharset().decode(httpReader.readBytes(header.getContentLength()).flip()));
-				else
-					System.out.println(header);
+			if (download == null) {
+				System.out.println(" >>> " + file + " is not a valid file name.");
+				continue;
 			}
+			queueMessage(download.request());
+			downloads.add(download);
+		}
+	}
+
+	/**
+	 * @return true if the files of the target can still be requested on this connection
+	 */
+	boolean isOpen() {
+		return requester && sc.isOpen();
+	}
+
+	private static String contentTypeOf(Path path) {
+		String type = null;
+		try {
+			type = Files.probeContentType(path);
+		} catch (IOException e) {
+			// unknown type
+		}
+		if (type == null)
+			return "application/octet-stream";
+		return type.startsWith("text/") ? type + ";charset=UTF-8" : type;
 	}
 
 	private void processOut() {
@@ -129,45 +301,48 @@ class PrivateConnection implements PrivateConnectionVisitor {
 			var toSend = queue.element();
 			if (bbout.remaining() < toSend.capacity())
 				return;
-			System.out.println(" [debug] processOut");
-			System.out.println(" [debug] toSend = " + StandardCharsets.UTF_8.decode(toSend));
-			toSend.flip(); // a enlever avec la ligne du dessus
-			System.out.println(" [debug] bbout = " + StandardCharsets.UTF_8.decode(bbout.flip()));
-			bbout.limit(bbout.capacity()); // a enlever avec la ligne du dessus
 			bbout.put(toSend);
-			System.out.println(" [debug] bbout = " + StandardCharsets.UTF_8.decode(bbout.flip()));
-			bbout.limit(bbout.capacity()); // a enlever avec la ligne du dessus
 			queue.remove();
 		}
 	}
 
 	public void queueMessage(String msg) {
-		System.out.println(" [debug] queueMessage : " + msg);
+		if (tracer.isEnabled(Tracer.Level.DEBUG))
+			tracer.event(Tracer.Level.DEBUG, "queued", "peer", distantClient, "request", msg.lines().findFirst().orElse(""));
 		queue.add(StringToBbManager.stringToBB(msg));
 		processOut();
 		updateInterestOps();
 	}
 
 	public void queueMessage(Frame frame) {
-		System.out.println(" [debug] queueMessage frame.asBuffer = " + StandardCharsets.UTF_8.decode(frame.asBuffer().flip()));
+		if (tracer.isEnabled(Tracer.Level.DEBUG))
+			tracer.event(Tracer.Level.DEBUG, "queued", "peer", distantClient, "opcode", frame.getOpcode());
 		queue.add(frame.asBuffer().flip());
 		processOut();
 		updateInterestOps();
 	}
 
 	void doRead() throws IOException {
-		System.out.println(" [debug] private connection doRead");
-		if (sc.read(bbin) == -1)
+		var read = sc.read(bbin);
+		if (read == -1)
 			closed = true;
+		if (tracer.isEnabled(Tracer.Level.TRACE))
+			tracer.event(Tracer.Level.TRACE, "read", "connectId", connectId, "bytes", read);
 		processIn();
 		updateInterestOps();
 	}
 
 	void doWrite() throws IOException {
-		System.out.println(" [debug] private connection doWrite --> " + StandardCharsets.UTF_8.decode(bbout.flip()));
-		sc.write(bbout.flip());
+		var written = sc.write(bbout.flip());
+		if (tracer.isEnabled(Tracer.Level.TRACE))
+			tracer.event(Tracer.Level.TRACE, "written", "connectId", connectId, "bytes", written);
 		bbout.compact();
 		processOut();
+		if (responder != null && bbout.position() == 0 && queue.isEmpty() && responder.writeTo(sc)) {
+			responder.close();
+			responder = null;
+			processIn();
+		}
 		updateInterestOps();
 	}
 
@@ -176,11 +351,9 @@ class PrivateConnection implements PrivateConnectionVisitor {
 		if (!sc.finishConnect())
 			return;
 		queueMessage(new FrameLoginPrivate(connectId));
-		if (file != null) {
-			queueMessage("GET " + file + " HTTP/1.1\r\n"
-					+ "Host: localhost\r\n"
-					+ "\r\n");
-		}
+		var files = List.copyOf(pendingFiles);
+		pendingFiles.clear();
+		fetch(files);
 	}
 
 	private void silentlyClose() {
@@ -189,6 +362,26 @@ class PrivateConnection implements PrivateConnectionVisitor {
 		} catch (IOException e) {
 			// ignore exception
 		}
+		if (responder != null) {
+			try {
+				responder.close();
+			} catch (IOException e) {
+				// ignore exception
+			}
+			responder = null;
+		}
+		for (var download : downloads) {
+			try {
+				download.close();
+			} catch (IOException e) {
+				// ignore exception
+			}
+		}
+		if (!released) {
+			released = true;
+			buffers.release(bbin);
+			buffers.release(bbout);
+		}
 	}
 
 
@@ -197,6 +390,7 @@ class PrivateConnection implements PrivateConnectionVisitor {
 	public void visit(FrameEstablished frameEstablished) {
 		System.out.println(" >>> Private connection established with " + distantClient + ".");
 		privateConnectionEstablished = true;
+		headerReader = new HTTPHeaderReader(bbin, !requester);
 	}
 
 
@@ -0,0 +1,718 @@
+package cluster;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import frames.Frame;
+import frames.FrameBatch;
+import frames.FrameCluster;
+import frames.FrameCompressed;
+import frames.FrameCompressionAccepted;
+import frames.FrameCompressionRequest;
+import frames.FrameHistoryMessage;
+import frames.FrameHistoryRequest;
+import frames.FrameIdPrivate;
+import frames.FrameJoinRoom;
+import frames.FrameKoPrivate;
+import frames.FrameLeaveRoom;
+import frames.FrameLogin;
+import frames.FrameLoginAccepted;
+import frames.FrameLoginPrivate;
+import frames.FrameLoginRefused;
+import frames.FrameMessage;
+import frames.FrameMessagePrivate;
+import frames.FrameOkPrivate;
+import frames.FramePing;
+import frames.FramePong;
+import frames.FrameRequestPrivate;
+import frames.FrameRoomMessage;
+import readers.FrameReader;
+import readers.Reader;
+import trace.Tracer;
+import visitors.PublicConnectionVisitor;
+
+/**
+ * Links the servers of a cluster sharing one login namespace.
+ *
+ * Every server is given the same list of nodes. A login is owned by the node it
+ * hashes to, which grants it to at most one client of the cluster: a node claims
+ * the login from its owner before accepting a client. The nodes also tell each
+ * other which logins their clients use, so that the frames sent to a client are
+ * forwarded straight to its node.
+ *
+ * Each node opens a link to every other node and only writes on it, the frames of
+ * the other nodes are read on the links they opened. The frames to forward to a
+ * node are queued and written by a thread of the link, as many at a time as the
+ * queue holds. The frames given while a link is down are dropped, and a node
+ * forgets the logins of another node when the link of that node goes down.
+ *
+ * A node only listens on its own address and opens its links from it, and it only
+ * accepts the link of a node coming from the address of that node in the list.
+ */
+public class Cluster implements Closeable {
+
+	static private Tracer tracer = Tracer.forComponent("cluster");
+	static private int BUFFER_SIZE = 64 * 1_024;
+	static private int MAX_BATCH = 256;
+	static private int MAX_QUEUED_FRAMES = 65_536;
+	static private long RECONNECT_MILLIS = 1_000;
+	static private long CLAIM_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+	static private ByteBuffer WAKE_UP = ByteBuffer.allocate(0);
+
+	/**
+	 * What the server does with the frames forwarded by the other nodes.
+	 *
+	 * Called on the thread reading the link of the other node, in the order the
+	 * frames were sent.
+	 */
+	public interface Handler {
+		void receive(FrameMessage frameMessage);
+		void receive(FrameBatch frameBatch);
+		void receive(FrameRoomMessage frameRoomMessage);
+		void receive(FrameMessagePrivate frameMessagePrivate);
+		void receive(FrameRequestPrivate frameRequestPrivate);
+		void receive(FrameKoPrivate frameKoPrivate);
+
+		/**
+		 * A login owned by this node was granted to a client of another node.
+		 */
+		void claimed(String login);
+
+		/**
+		 * The login is owned by a client of another node, the local client using it must be disconnected.
+		 */
+		void revoked(String login);
+	}
+
+	private static class Claim {
+		private final String login;
+		private final Consumer<Boolean> callback;
+		private final long deadline;
+
+		private Claim(String login, Consumer<Boolean> callback, long deadline) {
+			this.login = login;
+			this.callback = callback;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Both directions between this node and another one
+	 */
+	private class Link {
+		private final int node;
+		private final InetSocketAddress address;
+		private final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>(MAX_QUEUED_FRAMES);
+		private final ConcurrentHashMap<Long, Claim> claims = new ConcurrentHashMap<>();
+		private final Thread writer;
+		private volatile boolean up;
+		private volatile SocketChannel channel;
+		private Peer inbound; // guarded by this
+
+		private Link(int node) {
+			this.node = node;
+			this.address = nodes.get(node);
+			writer = new Thread(this::run, "cluster-link-" + node);
+			writer.setDaemon(true);
+		}
+
+		/**
+		 * @param frame in read-mode, never modified except for its position
+		 * @return false if the frame was dropped
+		 */
+		private boolean send(ByteBuffer frame) {
+			if (!up || !queue.offer(frame)) {
+				dropped.increment();
+				return false;
+			}
+			return true;
+		}
+
+		private boolean send(FrameCluster frame) {
+			return send(frame.asBuffer().flip());
+		}
+
+		private void claim(String login, Consumer<Boolean> callback) {
+			var id = nextClaim.incrementAndGet();
+			claims.put(id, new Claim(login, callback, System.nanoTime() + CLAIM_TIMEOUT_NANOS));
+			if (!send(new FrameCluster(FrameCluster.CLAIM, id, login)))
+				complete(id, false);
+		}
+
+		private void complete(long id, boolean granted) {
+			var claim = claims.remove(id);
+			if (claim != null) // else it expired
+				claim.callback.accept(granted);
+		}
+
+		/**
+		 * Refuses the claims without answer, releasing them in case the owner granted them
+		 */
+		private void expireClaims(boolean all) {
+			var now = System.nanoTime();
+			for (var entry : claims.entrySet()) {
+				var claim = entry.getValue();
+				if ((all || now - claim.deadline >= 0) && claims.remove(entry.getKey(), claim)) {
+					send(new FrameCluster(FrameCluster.ABSENT, claim.login));
+					claim.callback.accept(false);
+				}
+			}
+		}
+
+		/**
+		 * Opens the link again, telling the other node which logins this node uses
+		 *
+		 * Called when the link of the other node went down, since the other node
+		 * may have restarted without this node noticing it, nothing being read on the link.
+		 */
+		private void reconnect() {
+			var sc = channel;
+			if (sc == null)
+				return;
+			try {
+				sc.close();
+			} catch (IOException e) {
+				// ignore exception
+			}
+			queue.offer(WAKE_UP);
+		}
+
+		private void run() {
+			var batch = new ArrayList<ByteBuffer>(MAX_BATCH);
+			while (!closed) {
+				try (var sc = SocketChannel.open()) {
+					sc.bind(new InetSocketAddress(nodes.get(self).getAddress(), 0)); // the address the other node expects
+					sc.connect(address);
+					sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					channel = sc;
+					queue.clear(); // given while the link was down
+					up = true;
+					tracer.event(Tracer.Level.INFO, "link-up", "node", address);
+					batch.add(new FrameCluster(FrameCluster.HELLO, self, nodes.get(self).toString()).asBuffer().flip());
+					for (var login : local)
+						batch.add(new FrameCluster(FrameCluster.PRESENT, login).asBuffer().flip());
+					write(sc, batch);
+					while (!closed) {
+						var frame = queue.poll(RECONNECT_MILLIS, TimeUnit.MILLISECONDS);
+						expireClaims(false);
+						if (frame == null)
+							continue;
+						batch.add(frame);
+						queue.drainTo(batch, MAX_BATCH - 1);
+						write(sc, batch);
+					}
+				} catch (IOException e) {
+					if (up)
+						tracer.event(Tracer.Level.WARN, "link-down", "node", address, "cause", e);
+				} catch (InterruptedException e) {
+					return;
+				} finally {
+					up = false;
+					channel = null;
+					batch.clear();
+					expireClaims(true);
+				}
+				try {
+					Thread.sleep(RECONNECT_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Writes the frames of the batch with as few gathering writes as possible, and clears it
+		 */
+		private void write(SocketChannel sc, ArrayList<ByteBuffer> batch) throws IOException {
+			var frames = batch.toArray(ByteBuffer[]::new);
+			for (var first = 0; first < frames.length;) {
+				sc.write(frames, first, frames.length - first);
+				while (first < frames.length && !frames[first].hasRemaining())
+					first++;
+			}
+			forwarded.add(frames.length);
+			batches.increment();
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Reads the frames of a link opened by another node
+	 */
+	private class Peer implements PublicConnectionVisitor {
+		private final SocketChannel sc;
+		private Link link; // known once the other node said hello
+
+		private Peer(SocketChannel sc) {
+			this.sc = sc;
+		}
+
+		private void run() {
+			var bb = ByteBuffer.allocate(BUFFER_SIZE);
+			var reader = new FrameReader(bb);
+			try (sc) {
+				while (sc.read(bb) != -1) {
+					for (var status = reader.process(); status != Reader.ProcessStatus.REFILL; status = reader.process()) {
+						if (status == Reader.ProcessStatus.ERROR)
+							return;
+						var frame = (Frame) reader.get();
+						reader.reset();
+						if (!dispatch(frame))
+							return;
+					}
+				}
+			} catch (IOException e) {
+				// the link is closed
+			} finally {
+				if (link != null)
+					synchronized (link) {
+						if (link.inbound == this) {
+							link.inbound = null;
+							forget(link.node);
+							link.reconnect();
+						}
+					}
+			}
+		}
+
+		/**
+		 * @return false if the link must be closed
+		 */
+		private boolean dispatch(Frame frame) {
+			if (link == null)
+				return hello(frame);
+			synchronized (link) {
+				if (link.inbound != this) // replaced by a newer link of the same node
+					return false;
+				frame.accept(this);
+				return true;
+			}
+		}
+
+		private boolean hello(Frame frame) {
+			if (!(frame instanceof FrameCluster) || ((FrameCluster) frame).getKind() != FrameCluster.HELLO)
+				return false;
+			var node = frame.getLong().getAsLong();
+			if (node < 0 || node >= nodes.size() || node == self)
+				return false;
+			if (!isFrom(nodes.get((int) node))) {
+				tracer.event(Tracer.Level.WARN, "hello-refused", "node", node, "from", sc.socket().getRemoteSocketAddress());
+				return false;
+			}
+			link = links[(int) node];
+			synchronized (link) {
+				if (link.inbound != null)
+					link.inbound.close();
+				link.inbound = this;
+				forget(link.node); // the other node tells again which logins it uses
+			}
+			return true;
+		}
+
+		/**
+		 * @return true if the link comes from the host of the node
+		 */
+		private boolean isFrom(InetSocketAddress node) {
+			var remote = (InetSocketAddress) sc.socket().getRemoteSocketAddress();
+			return remote != null && node.getAddress() != null && node.getAddress().equals(remote.getAddress());
+		}
+
+		private void close() {
+			try {
+				sc.close();
+			} catch (IOException e) {
+				// ignore exception
+			}
+		}
+
+		@Override
+		public void visit(FrameCluster frameCluster) {
+			var name = frameCluster.getName();
+			var value = frameCluster.getLong().getAsLong();
+			switch (frameCluster.getKind()) {
+				case FrameCluster.CLAIM:
+					grant(link, value, name);
+					break;
+				case FrameCluster.GRANTED:
+					link.complete(value, true);
+					break;
+				case FrameCluster.REFUSED:
+					link.complete(value, false);
+					break;
+				case FrameCluster.PRESENT:
+					if (ownerOf(name) == self) {
+						var owner = owned.putIfAbsent(name, link.node);
+						if (owner != null && owner != link.node) { // granted to another node while the link was down
+							link.send(new FrameCluster(FrameCluster.REVOKE, name));
+							break;
+						}
+					}
+					locations.put(name, link.node);
+					break;
+				case FrameCluster.ABSENT:
+					locations.remove(name, link.node);
+					owned.remove(name, link.node);
+					break;
+				case FrameCluster.REVOKE:
+					handler.revoked(name);
+					break;
+				default:
+					break;
+			}
+		}
+
+		@Override
+		public void visit(FrameMessage frameMessage) {
+			handler.receive(frameMessage);
+		}
+
+		@Override
+		public void visit(FrameBatch frameBatch) {
+			handler.receive(frameBatch);
+		}
+
+		@Override
+		public void visit(FrameRoomMessage frameRoomMessage) {
+			handler.receive(frameRoomMessage);
+		}
+
+		@Override
+		public void visit(FrameMessagePrivate frameMessagePrivate) {
+			handler.receive(frameMessagePrivate);
+		}
+
+		@Override
+		public void visit(FrameRequestPrivate frameRequestPrivate) {
+			handler.receive(frameRequestPrivate);
+		}
+
+		@Override
+		public void visit(FrameKoPrivate frameKoPrivate) {
+			handler.receive(frameKoPrivate);
+		}
+
+		@Override
+		public void visit(FrameLogin frameLogin) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FrameIdPrivate frameIdPrivate) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FrameLoginAccepted frameLoginAccepted) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FrameLoginPrivate frameLoginPrivate) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FrameLoginRefused frameLoginRefused) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FrameOkPrivate frameOkPrivate) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FrameHistoryRequest frameHistoryRequest) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FrameHistoryMessage frameHistoryMessage) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FrameJoinRoom frameJoinRoom) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FrameLeaveRoom frameLeaveRoom) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FrameCompressionRequest frameCompressionRequest) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FrameCompressionAccepted frameCompressionAccepted) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FrameCompressed frameCompressed) {
+			// DO NOTHING, the links are not compressed
+		}
+
+		@Override
+		public void visit(FramePing framePing) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FramePong framePong) {
+			// DO NOTHING
+		}
+	}
+
+	private final List<InetSocketAddress> nodes;
+	private final int self;
+	private final Handler handler;
+	private final ServerSocketChannel serverSocketChannel;
+	private final Link[] links; // null for this node
+	private final Thread acceptor;
+	private final Set<Peer> peers = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<String, Integer> owned = new ConcurrentHashMap<>(); // node each login owned by this node is granted to
+	private final ConcurrentHashMap<String, Integer> locations = new ConcurrentHashMap<>(); // node of the clients of the other nodes
+	private final Set<String> local = ConcurrentHashMap.newKeySet(); // logins of the clients of this node
+	private final AtomicLong nextClaim = new AtomicLong();
+	private final LongAdder forwarded = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private volatile boolean closed;
+
+	/**
+	 * Listens for the links of the other nodes on the port of this node, start must be called then.
+	 *
+	 * @param nodes the addresses of the nodes, in the same order on every node
+	 * @param self the index of this node
+	 * @param handler
+	 * @throws IOException
+	 */
+	public Cluster(List<InetSocketAddress> nodes, int self, Handler handler) throws IOException {
+		if (self < 0 || self >= nodes.size())
+			throw new IllegalArgumentException("no node " + self + " in the cluster");
+		this.nodes = List.copyOf(nodes);
+		this.self = self;
+		this.handler = handler;
+		serverSocketChannel = ServerSocketChannel.open();
+		serverSocketChannel.bind(nodes.get(self));
+		links = new Link[nodes.size()];
+		for (var node = 0; node < links.length; node++)
+			if (node != self)
+				links[node] = new Link(node);
+		acceptor = new Thread(this::accept, "cluster-acceptor");
+		acceptor.setDaemon(true);
+	}
+
+	/**
+	 * Starts accepting the links of the other nodes and opening the links to them.
+	 */
+	public void start() {
+		acceptor.start();
+		for (var link : links)
+			if (link != null)
+				link.writer.start();
+	}
+
+	private void accept() {
+		while (!closed) {
+			try {
+				var peer = new Peer(serverSocketChannel.accept());
+				peers.add(peer);
+				var thread = new Thread(() -> {
+					peer.run();
+					peers.remove(peer);
+				}, "cluster-peer");
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				if (!closed)
+					tracer.event(Tracer.Level.ERROR, "accept-failed", "cause", e);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Forgets the logins used by the clients of a node and the logins granted to them
+	 *
+	 * @param node
+	 */
+	private void forget(int node) {
+		locations.values().removeIf(location -> location == node);
+		owned.values().removeIf(owner -> owner == node);
+	}
+
+	/**
+	 * Grants a login owned by this node to a client of another node, if no other client uses it
+	 */
+	private void grant(Link link, long id, String login) {
+		if (ownerOf(login) != self || owned.putIfAbsent(login, link.node) != null) {
+			link.send(new FrameCluster(FrameCluster.REFUSED, id, login));
+			return;
+		}
+		locations.put(login, link.node);
+		if (!link.send(new FrameCluster(FrameCluster.GRANTED, id, login))) {
+			locations.remove(login, link.node);
+			owned.remove(login, link.node);
+			return;
+		}
+		handler.claimed(login);
+	}
+
+	/**
+	 * @return the index of the node owning the login
+	 */
+	public int ownerOf(String login) {
+		return Math.floorMod(login.hashCode(), nodes.size());
+	}
+
+	/**
+	 * Reserves a login for a client of this node.
+	 *
+	 * The login is refused if it is used by another client of the cluster or if its
+	 * owner cannot be reached. Once granted, the login must be given back with absent.
+	 *
+	 * @param login
+	 * @param callback called with true if the login is granted, on the calling thread
+	 *                 or on a thread of the cluster
+	 */
+	public void claim(String login, Consumer<Boolean> callback) {
+		var owner = ownerOf(login);
+		if (owner == self)
+			callback.accept(owned.putIfAbsent(login, self) == null);
+		else
+			links[owner].claim(login, callback);
+	}
+
+	/**
+	 * Tells the other nodes that a client of this node uses a granted login
+	 */
+	public void present(String login) {
+		local.add(login);
+		sendAll(new FrameCluster(FrameCluster.PRESENT, login));
+	}
+
+	/**
+	 * Gives back a granted login and tells the other nodes that no client of this node uses it
+	 */
+	public void absent(String login) {
+		local.remove(login);
+		owned.remove(login, self);
+		sendAll(new FrameCluster(FrameCluster.ABSENT, login));
+	}
+
+	private void sendAll(FrameCluster frame) {
+		broadcast(frame.asBuffer().flip());
+	}
+
+	/**
+	 * @return the index of the node of the client using the login, -1 if it is not a client of another node
+	 */
+	public int nodeOf(String login) {
+		var node = locations.get(login);
+		return node == null ? -1 : node;
+	}
+
+	/**
+	 * Forwards frames to another node
+	 *
+	 * @param node
+	 * @param frames the encoded frames, in read-mode, never modified except for the position
+	 * @return false if the frames were dropped
+	 */
+	public boolean forward(int node, ByteBuffer frames) {
+		return links[node].send(frames);
+	}
+
+	/**
+	 * Forwards a frame to the node of the client using the login
+	 *
+	 * @return false if the login is not used by a client of another node or if the frame was dropped
+	 */
+	public boolean forward(String login, ByteBuffer frame) {
+		var node = nodeOf(login);
+		return node >= 0 && forward(node, frame);
+	}
+
+	/**
+	 * Forwards a frame to the node owning the login
+	 *
+	 * @return false if this node owns the login or if the frame was dropped
+	 */
+	public boolean forwardToOwner(String login, ByteBuffer frame) {
+		var owner = ownerOf(login);
+		return owner != self && forward(owner, frame);
+	}
+
+	/**
+	 * Forwards a frame to all the other nodes
+	 *
+	 * @param frame in read-mode, each node gets its own view of it
+	 */
+	public void broadcast(ByteBuffer frame) {
+		for (var link : links)
+			if (link != null)
+				link.send(frame.duplicate());
+	}
+
+	public int linksUp() {
+		var up = 0;
+		for (var link : links)
+			if (link != null && link.up)
+				up++;
+		return up;
+	}
+
+	public int remoteLogins() {
+		return locations.size();
+	}
+
+	public long forwardedCount() {
+		return forwarded.sum();
+	}
+
+	public long batchCount() {
+		return batches.sum();
+	}
+
+	public long droppedCount() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Closes the links, the frames not written yet are lost.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			serverSocketChannel.close();
+		} catch (IOException e) {
+			// ignore exception
+		}
+		for (var link : links)
+			if (link != null)
+				link.writer.interrupt();
+		for (var peer : peers)
+			peer.close();
+	}
+}
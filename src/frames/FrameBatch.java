@@ -0,0 +1,187 @@
+package frames;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import visitors.PrivateConnectionVisitor;
+import visitors.PublicConnectionVisitor;
+
+/**
+ * Public messages sent by the server as a single frame.
+ *
+ * Each entry starts with a reference to the login of its sender: -1 when the login
+ * follows as a STRING, otherwise the index of a login which already appeared in the
+ * batch, in order of appearance. The message follows as a STRING.
+ */
+public class FrameBatch implements Frame {
+
+    /** maximum size of the entries of a batch, in bytes */
+    static public final int MAX_DATA_BYTES = 16 * 1_024;
+    static private final int MAX_LOGINS = Byte.MAX_VALUE + 1;
+    static private final byte NEW_LOGIN = -1;
+
+    /**
+     * Encodes public messages one after the other into the entries of a batch
+     */
+    public static class Builder {
+        private final ByteBuffer data = ByteBuffer.allocate(MAX_DATA_BYTES);
+        private final HashMap<String, Byte> logins = new HashMap<>();
+        private int count;
+
+        /**
+         * @return false if the message does not fit in the batch
+         */
+        public boolean add(FrameMessage message) {
+            var login = message.getLoginSender().get();
+            var index = logins.get(login);
+            if (index == null && logins.size() == MAX_LOGINS)
+                return false;
+            var msg = StringToBbManager.stringToBBFormated(message.getMessage().get());
+            var log = index == null ? StringToBbManager.stringToBBFormated(login) : null;
+            if (data.remaining() < 1 + msg.remaining() + (log == null ? 0 : log.remaining()))
+                return false;
+            if (log == null)
+                data.put(index);
+            else {
+                logins.put(login, (byte) logins.size());
+                data.put(NEW_LOGIN).put(log);
+            }
+            data.put(msg);
+            count++;
+            return true;
+        }
+
+        /**
+         * @return the number of messages in the batch
+         */
+        public int count() {
+            return count;
+        }
+
+        /**
+         * @return the batch frame, in write-mode as returned by asBuffer
+         */
+        public ByteBuffer encode() {
+            ByteBuffer toRet=ByteBuffer.allocate(1+Integer.BYTES+data.position());
+            toRet.put(OPCODE);
+            toRet.putInt(data.position());
+            toRet.put(data.duplicate().flip());
+            return toRet;
+        }
+
+        public void clear() {
+            data.clear();
+            logins.clear();
+            count = 0;
+        }
+    }
+
+    static private final byte OPCODE=17;
+    private final byte opcode=OPCODE;
+    private final List<FrameMessage> messages;
+
+    public FrameBatch(List<FrameMessage> messages) {
+        if(messages.isEmpty()) throw new IllegalArgumentException();
+        this.messages = List.copyOf(messages);
+    }
+
+    /**
+     * @param data the entries of a batch, in read-mode
+     * @throws IllegalArgumentException if the entries are ill-formed
+     */
+    public static FrameBatch decode(ByteBuffer data) {
+        var logins = new ArrayList<String>();
+        var messages = new ArrayList<FrameMessage>();
+        try {
+            while (data.hasRemaining()) {
+                var index = data.get();
+                if (index == NEW_LOGIN)
+                    logins.add(decodeString(data));
+                else if (index < 0 || index >= logins.size())
+                    throw new IllegalArgumentException("unknown login " + index);
+                var login = index == NEW_LOGIN ? logins.get(logins.size() - 1) : logins.get(index);
+                messages.add(new FrameMessage(login, decodeString(data)));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated batch");
+        }
+        return new FrameBatch(messages);
+    }
+
+    private static String decodeString(ByteBuffer data) {
+        var size = data.getInt();
+        if (size < 0 || size > data.remaining())
+            throw new IllegalArgumentException("truncated string");
+        var value = StandardCharsets.UTF_8.decode(data.slice().limit(size)).toString();
+        data.position(data.position() + size);
+        return value;
+    }
+
+    public List<FrameMessage> getMessages() {
+        return messages;
+    }
+
+    @Override
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    @Override
+    public Optional<String> getLoginSender() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getLoginTarget() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getMessage() {
+        return Optional.empty();
+    }
+
+    @Override
+    public OptionalLong getLong() {
+        return OptionalLong.empty();
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder();
+        for (var message : messages) {
+            if (sb.length() > 0)
+                sb.append('\n');
+            sb.append(message);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @throws IllegalStateException if the messages do not fit in a single batch
+     */
+    @Override
+    public ByteBuffer asBuffer() {
+        var builder = new Builder();
+        for (var message : messages)
+            if (!builder.add(message))
+                throw new IllegalStateException("too many messages for a batch");
+        return builder.encode();
+    }
+
+	@Override
+	public void accept(PublicConnectionVisitor visitor) {
+		visitor.visit(this);
+	}
+
+	@Override
+	public void accept(PrivateConnectionVisitor visitor) {
+		// DO NOTHING
+	}
+}
@@ -0,0 +1,106 @@
+package frames;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import visitors.PrivateConnectionVisitor;
+import visitors.PublicConnectionVisitor;
+
+/**
+ * Command exchanged between the servers of a cluster, never by the clients.
+ */
+public class FrameCluster implements Frame {
+
+    /** first command on a link, value is the index of the node and name its address */
+    static public final int HELLO = 0;
+    /** asks the node owning the login to reserve it, value identifies the claim */
+    static public final int CLAIM = 1;
+    /** the claim with this value is granted */
+    static public final int GRANTED = 2;
+    /** the claim with this value is refused */
+    static public final int REFUSED = 3;
+    /** a client with this login is connected to the sending node */
+    static public final int PRESENT = 4;
+    /** the client with this login left the sending node, its claim is released */
+    static public final int ABSENT = 5;
+    /** the login is owned by another node, its client must be disconnected */
+    static public final int REVOKE = 6;
+
+    private final byte opcode=16;
+    private final long kind;
+    private final long value;
+    private final String name;
+
+    public FrameCluster(long kind, long value, String name) {
+        if(kind < HELLO || kind > REVOKE || name.isBlank()) throw new IllegalArgumentException();
+        if(!StringToBbManager.testMsg(name))throw new IllegalArgumentException("too long name");
+        this.kind = kind;
+        this.value = value;
+        this.name = name;
+    }
+
+    public FrameCluster(int kind, String name) {
+        this(kind, 0, name);
+    }
+
+    @Override
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    public int getKind() {
+        return (int) kind;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Optional<String> getLoginSender() {
+        return Optional.ofNullable(name);
+    }
+
+    @Override
+    public Optional<String> getLoginTarget() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getMessage() {
+        return Optional.empty();
+    }
+
+    @Override
+    public OptionalLong getLong() {
+        return OptionalLong.of(value);
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder("cluster ").append(kind).append(' ').append(value).append(' ').append(name);
+        return sb.toString();
+    }
+
+    @Override
+    public ByteBuffer asBuffer() {
+        ByteBuffer nm= StringToBbManager.stringToBBFormated(name);
+        ByteBuffer toRet=ByteBuffer.allocate(1+2*Long.BYTES+nm.remaining());
+        toRet.put(opcode);
+        toRet.putLong(kind);
+        toRet.putLong(value);
+        toRet.put(nm);
+        return toRet;
+    }
+
+	@Override
+	public void accept(PublicConnectionVisitor visitor) {
+		visitor.visit(this);
+	}
+
+	@Override
+	public void accept(PrivateConnectionVisitor visitor) {
+		// DO NOTHING
+	}
+}
@@ -0,0 +1,173 @@
+package frames;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import visitors.PrivateConnectionVisitor;
+import visitors.PublicConnectionVisitor;
+
+/**
+ * Frames encoded one after the other and compressed together, once the compression
+ * is negotiated.
+ *
+ * The data of each COMPRESSED frame is a complete zlib stream (RFC 1950) which does
+ * not depend on the previous COMPRESSED frames, so the same frame may be sent to
+ * many clients.
+ */
+public class FrameCompressed implements Frame {
+
+    /** the only algorithm supported */
+    static public final String DEFLATE = "deflate";
+    /** maximum size of the data of a COMPRESSED frame sent by a client, in bytes */
+    static public final int MAX_CLIENT_DATA_BYTES = 1_024;
+    /** maximum size of the data of a COMPRESSED frame sent by the server, in bytes */
+    static public final int MAX_SERVER_DATA_BYTES = FrameBatch.MAX_DATA_BYTES;
+    /** maximum size of the frames of a COMPRESSED frame once inflated, in bytes */
+    static public final int MAX_INFLATED_BYTES = 64 * 1_024;
+    /** frames smaller than this are not worth compressing */
+    static public final int MIN_DEFLATED_BYTES = 128;
+
+    /**
+     * A deflater and an inflater with their buffers, reset for each frame.
+     *
+     * A codec must only be used by one thread at a time, it is not thread-safe.
+     */
+    public static class Codec {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final Inflater inflater = new Inflater();
+        private final ByteBuffer deflated = ByteBuffer.allocate(MAX_SERVER_DATA_BYTES + 1);
+        private final ByteBuffer inflated = ByteBuffer.allocate(MAX_INFLATED_BYTES);
+
+        /**
+         * @param frames encoded frames in read-mode, never modified
+         * @param maxDataBytes maximum size of the data of the COMPRESSED frame
+         * @return the COMPRESSED frame in read-mode, or null if compressing the frames
+         * does not make them smaller or does not fit in maxDataBytes
+         */
+        public ByteBuffer compress(ByteBuffer frames, int maxDataBytes) {
+            var size = frames.remaining();
+            if (size < MIN_DEFLATED_BYTES || size > MAX_INFLATED_BYTES)
+                return null;
+            maxDataBytes = Math.min(Math.min(maxDataBytes, MAX_SERVER_DATA_BYTES), size - 1 - Integer.BYTES - 1);
+            deflater.reset();
+            deflater.setInput(frames.duplicate());
+            deflater.finish();
+            deflated.clear().limit(maxDataBytes + 1);
+            while (!deflater.finished() && deflated.hasRemaining())
+                deflater.deflate(deflated);
+            if (!deflater.finished() || deflated.position() > maxDataBytes)
+                return null;
+            var toRet = ByteBuffer.allocate(1 + Integer.BYTES + deflated.position());
+            toRet.put(OPCODE);
+            toRet.putInt(deflated.position());
+            toRet.put(deflated.flip());
+            return toRet.flip();
+        }
+
+        /**
+         * @return the frames of the COMPRESSED frame in write-mode, in a buffer
+         * of the codec which is only valid until its next use
+         * @throws IllegalArgumentException if the data is not exactly a zlib stream
+         * of at most MAX_INFLATED_BYTES
+         */
+        public ByteBuffer inflate(FrameCompressed frame) {
+            inflater.reset();
+            inflater.setInput(frame.getData());
+            inflated.clear();
+            try {
+                while (!inflater.finished()) {
+                    if (!inflated.hasRemaining())
+                        throw new IllegalArgumentException("too many inflated bytes");
+                    if (inflater.inflate(inflated) == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new IllegalArgumentException("truncated data");
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException(e);
+            }
+            if (inflater.getRemaining() != 0)
+                throw new IllegalArgumentException("trailing data");
+            return inflated;
+        }
+
+        /**
+         * Releases the native memory of the codec
+         */
+        public void close() {
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    static private final byte OPCODE=20;
+    private final byte opcode=OPCODE;
+    private final ByteBuffer data;
+
+    /**
+     * @param data in read-mode, never modified
+     */
+    public FrameCompressed(ByteBuffer data) {
+        if(!data.hasRemaining()) throw new IllegalArgumentException();
+        this.data = data;
+    }
+
+    @Override
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * @return the compressed frames, in read-mode
+     */
+    public ByteBuffer getData() {
+        return data.duplicate();
+    }
+
+    @Override
+    public Optional<String> getLoginSender() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getLoginTarget() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getMessage() {
+        return Optional.empty();
+    }
+
+    @Override
+    public OptionalLong getLong() {
+        return OptionalLong.empty();
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder("compressed ").append(data.remaining()).append(" bytes");
+        return sb.toString();
+    }
+
+    @Override
+    public ByteBuffer asBuffer() {
+        ByteBuffer toRet=ByteBuffer.allocate(1+Integer.BYTES+data.remaining());
+        toRet.put(opcode);
+        toRet.putInt(data.remaining());
+        toRet.put(data.duplicate());
+        return toRet;
+    }
+
+	@Override
+	public void accept(PublicConnectionVisitor visitor) {
+		visitor.visit(this);
+	}
+
+	@Override
+	public void accept(PrivateConnectionVisitor visitor) {
+		// DO NOTHING
+	}
+}
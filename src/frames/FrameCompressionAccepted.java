@@ -0,0 +1,78 @@
+package frames;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import visitors.PrivateConnectionVisitor;
+import visitors.PublicConnectionVisitor;
+
+/**
+ * Sent by the server with the algorithm it chose: every frame following this one
+ * may be a COMPRESSED frame, in both directions.
+ */
+public class FrameCompressionAccepted implements Frame {
+
+    private final byte opcode=19;
+    private final String algorithm;
+
+    public FrameCompressionAccepted(String algorithm) {
+        if(algorithm.isBlank()) throw new IllegalArgumentException();
+        if(!StringToBbManager.testMsg(algorithm))throw new IllegalArgumentException("too long algorithm");
+        this.algorithm = algorithm;
+    }
+
+    @Override
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public Optional<String> getLoginSender() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getLoginTarget() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getMessage() {
+        return Optional.ofNullable(algorithm);
+    }
+
+    @Override
+    public OptionalLong getLong() {
+        return OptionalLong.empty();
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder("compression accepted : ").append(algorithm);
+        return sb.toString();
+    }
+
+    @Override
+    public ByteBuffer asBuffer() {
+        ByteBuffer alg= StringToBbManager.stringToBBFormated(algorithm);
+        ByteBuffer toRet=ByteBuffer.allocate(1+alg.remaining());
+        toRet.put(opcode);
+        toRet.put(alg);
+        return toRet;
+    }
+
+	@Override
+	public void accept(PublicConnectionVisitor visitor) {
+		visitor.visit(this);
+	}
+
+	@Override
+	public void accept(PrivateConnectionVisitor visitor) {
+		// DO NOTHING
+	}
+}
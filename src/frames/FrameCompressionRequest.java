@@ -0,0 +1,80 @@
+package frames;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import visitors.PrivateConnectionVisitor;
+import visitors.PublicConnectionVisitor;
+
+/**
+ * Sent by a client once its login is accepted, with the compression algorithms
+ * it supports in order of preference, separated by commas.
+ */
+public class FrameCompressionRequest implements Frame {
+
+    private final byte opcode=18;
+    private final String algorithms;
+
+    public FrameCompressionRequest(String algorithms) {
+        if(algorithms.isBlank()) throw new IllegalArgumentException();
+        if(!StringToBbManager.testMsg(algorithms))throw new IllegalArgumentException("too long algorithms");
+        this.algorithms = algorithms;
+    }
+
+    @Override
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    public List<String> getAlgorithms() {
+        return Arrays.asList(algorithms.split(","));
+    }
+
+    @Override
+    public Optional<String> getLoginSender() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getLoginTarget() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getMessage() {
+        return Optional.ofNullable(algorithms);
+    }
+
+    @Override
+    public OptionalLong getLong() {
+        return OptionalLong.empty();
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder("compression requested : ").append(algorithms);
+        return sb.toString();
+    }
+
+    @Override
+    public ByteBuffer asBuffer() {
+        ByteBuffer alg= StringToBbManager.stringToBBFormated(algorithms);
+        ByteBuffer toRet=ByteBuffer.allocate(1+alg.remaining());
+        toRet.put(opcode);
+        toRet.put(alg);
+        return toRet;
+    }
+
+	@Override
+	public void accept(PublicConnectionVisitor visitor) {
+		visitor.visit(this);
+	}
+
+	@Override
+	public void accept(PrivateConnectionVisitor visitor) {
+		// DO NOTHING
+	}
+}
@@ -0,0 +1,92 @@
+package frames;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import visitors.PrivateConnectionVisitor;
+import visitors.PublicConnectionVisitor;
+
+public class FrameHistoryMessage implements Frame {
+
+    private final byte opcode=12;
+    private final long sequence;
+    private final long timestamp;
+    private final String login;
+    private final String message;
+
+    /**
+     * @param sequence number of the message in the history of the server
+     * @param timestamp time the server received the message, in milliseconds since the epoch
+     * @param login
+     * @param message
+     */
+    public FrameHistoryMessage(long sequence, long timestamp, String login, String message) {
+        if(login.isBlank() || message.isBlank()) throw new IllegalArgumentException();
+        if(!StringToBbManager.testMsg(message))throw new IllegalArgumentException("too long message");
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.login = login;
+        this.message = message;
+    }
+
+    @Override
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    @Override
+    public Optional<String> getLoginSender() {
+        return Optional.ofNullable(login);
+    }
+
+    @Override
+    public Optional<String> getLoginTarget() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getMessage() {
+        return Optional.ofNullable(message);
+    }
+
+    @Override
+    public OptionalLong getLong() {
+        return OptionalLong.of(sequence);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder("[").append(Instant.ofEpochMilli(timestamp)).append("] ")
+                .append(login).append(" sent to all : ").append(message);
+        return sb.toString();
+    }
+
+    @Override
+    public ByteBuffer asBuffer() {
+        ByteBuffer log= StringToBbManager.stringToBBFormated(login);
+        ByteBuffer msg= StringToBbManager.stringToBBFormated(message);
+        ByteBuffer toRet=ByteBuffer.allocate(1+2*Long.BYTES+log.remaining()+msg.remaining());
+        toRet.put(opcode);
+        toRet.putLong(sequence);
+        toRet.putLong(timestamp);
+        toRet.put(log);
+        toRet.put(msg);
+        return toRet;
+    }
+
+	@Override
+	public void accept(PublicConnectionVisitor visitor) {
+		visitor.visit(this);
+	}
+
+	@Override
+	public void accept(PrivateConnectionVisitor visitor) {
+		// DO NOTHING
+	}
+}
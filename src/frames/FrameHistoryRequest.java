@@ -0,0 +1,88 @@
+package frames;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import visitors.PrivateConnectionVisitor;
+import visitors.PublicConnectionVisitor;
+
+public class FrameHistoryRequest implements Frame {
+
+    private final byte opcode=11;
+    private final long fromSequence;
+    private final long fromTime;
+    private final long count;
+
+    /**
+     * @param fromSequence first sequence number wanted, or -1 for the last messages
+     * @param fromTime messages older than this time, in milliseconds since the epoch, are not wanted
+     * @param count maximum number of messages wanted
+     */
+    public FrameHistoryRequest(long fromSequence, long fromTime, long count) {
+        if(count < 0) throw new IllegalArgumentException();
+        this.fromSequence = fromSequence;
+        this.fromTime = fromTime;
+        this.count = count;
+    }
+
+    /**
+     * @return the last count messages
+     */
+    public static FrameHistoryRequest last(long count) {
+        return new FrameHistoryRequest(-1, 0, count);
+    }
+
+    @Override
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    @Override
+    public Optional<String> getLoginSender() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getLoginTarget() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getMessage() {
+        return Optional.empty();
+    }
+
+    @Override
+    public OptionalLong getLong() {
+        return OptionalLong.of(fromSequence);
+    }
+
+    public long getFromTime() {
+        return fromTime;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public ByteBuffer asBuffer() {
+        ByteBuffer toRet=ByteBuffer.allocate(1+3*Long.BYTES);
+        toRet.put(opcode);
+        toRet.putLong(fromSequence);
+        toRet.putLong(fromTime);
+        toRet.putLong(count);
+        return toRet;
+    }
+
+	@Override
+	public void accept(PublicConnectionVisitor visitor) {
+		visitor.visit(this);
+	}
+
+	@Override
+	public void accept(PrivateConnectionVisitor visitor) {
+		// DO NOTHING
+	}
+}
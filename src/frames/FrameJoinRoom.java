@@ -0,0 +1,71 @@
+package frames;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import visitors.PrivateConnectionVisitor;
+import visitors.PublicConnectionVisitor;
+
+public class FrameJoinRoom implements Frame {
+
+    private final byte opcode=13;
+    private final String login;
+    private final String room;
+
+    public FrameJoinRoom(String login, String room) {
+        if(login.isBlank() || room.isBlank()) throw new IllegalArgumentException();
+        this.login = login;
+        this.room = room;
+    }
+
+    @Override
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    @Override
+    public Optional<String> getLoginSender() {
+        return Optional.ofNullable(login);
+    }
+
+    @Override
+    public Optional<String> getLoginTarget() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getMessage() {
+        return Optional.empty();
+    }
+
+    @Override
+    public OptionalLong getLong() {
+        return OptionalLong.empty();
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    @Override
+    public ByteBuffer asBuffer() {
+        ByteBuffer log= StringToBbManager.stringToBBFormated(login);
+        ByteBuffer roomName= StringToBbManager.stringToBBFormated(room);
+        ByteBuffer toRet=ByteBuffer.allocate(1+log.remaining()+roomName.remaining());
+        toRet.put(opcode);
+        toRet.put(log);
+        toRet.put(roomName);
+        return toRet;
+    }
+
+	@Override
+	public void accept(PublicConnectionVisitor visitor) {
+		visitor.visit(this);
+	}
+
+	@Override
+	public void accept(PrivateConnectionVisitor visitor) {
+		// DO NOTHING
+	}
+}
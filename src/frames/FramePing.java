@@ -0,0 +1,71 @@
+package frames;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import visitors.PrivateConnectionVisitor;
+import visitors.PublicConnectionVisitor;
+
+/**
+ * Sent by the server to a connection silent for half the idle timeout, or by a client to
+ * keep its connection alive: the other side answers PONG with the same token.
+ */
+public class FramePing implements Frame {
+
+    private final byte opcode=21;
+    private final long token;
+
+    public FramePing(long token) {
+        this.token = token;
+    }
+
+    @Override
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    @Override
+    public Optional<String> getLoginSender() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getLoginTarget() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getMessage() {
+        return Optional.empty();
+    }
+
+    @Override
+    public OptionalLong getLong() {
+        return OptionalLong.of(token);
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder("ping ").append(token);
+        return sb.toString();
+    }
+
+    @Override
+    public ByteBuffer asBuffer() {
+        ByteBuffer toRet=ByteBuffer.allocate(1+Long.BYTES);
+        toRet.put(opcode);
+        toRet.putLong(token);
+        return toRet;
+    }
+
+	@Override
+	public void accept(PublicConnectionVisitor visitor) {
+		visitor.visit(this);
+	}
+
+	@Override
+	public void accept(PrivateConnectionVisitor visitor) {
+		// DO NOTHING
+	}
+}
@@ -0,0 +1,82 @@
+package frames;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import visitors.PrivateConnectionVisitor;
+import visitors.PublicConnectionVisitor;
+
+public class FrameRoomMessage implements Frame {
+
+    private final byte opcode=15;
+    private final String login;
+    private final String room;
+    private final String message;
+
+    public FrameRoomMessage(String login, String room, String message) {
+        if(login.isBlank() || room.isBlank() || message.isBlank()) throw new IllegalArgumentException();
+        if(!StringToBbManager.testMsg(message))throw new IllegalArgumentException("too long message");
+        this.login = login;
+        this.room = room;
+        this.message = message;
+    }
+
+    @Override
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    @Override
+    public Optional<String> getLoginSender() {
+        return Optional.ofNullable(login);
+    }
+
+    @Override
+    public Optional<String> getLoginTarget() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> getMessage() {
+        return Optional.ofNullable(message);
+    }
+
+    @Override
+    public OptionalLong getLong() {
+        return OptionalLong.empty();
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder(login).append(" send to #").append(room).append(" : ").append(message);
+        return sb.toString();
+    }
+
+    @Override
+    public ByteBuffer asBuffer() {
+        ByteBuffer log= StringToBbManager.stringToBBFormated(login);
+        ByteBuffer roomName= StringToBbManager.stringToBBFormated(room);
+        ByteBuffer msg= StringToBbManager.stringToBBFormated(message);
+        ByteBuffer toRet=ByteBuffer.allocate(1+log.remaining()+roomName.remaining()+msg.remaining());
+        toRet.put(opcode);
+        toRet.put(log);
+        toRet.put(roomName);
+        toRet.put(msg);
+        return toRet;
+    }
+
+	@Override
+	public void accept(PublicConnectionVisitor visitor) {
+		visitor.visit(this);
+	}
+
+	@Override
+	public void accept(PrivateConnectionVisitor visitor) {
+		// DO NOTHING
+	}
+}
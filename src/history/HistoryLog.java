@@ -0,0 +1,442 @@
+package history;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import frames.FrameHistoryMessage;
+
+/**
+ * Append-only log of the public messages of a server.
+ *
+ * Each message gets a sequence number and a timestamp and is stored as an encoded
+ * HISTORY_MESSAGE frame, so reading the history never encodes anything again. The log
+ * is split into segment files named after the sequence number of their first message.
+ * A record is the length of the frame, its CRC32 and the frame: on startup the segments
+ * are scanned to rebuild the index and a torn record at the end is truncated.
+ *
+ * The files are only touched by a writer thread: append and read hand tasks over to it
+ * and never block the caller. The appended records are written in batches and forced
+ * to disk every sync interval, a crash loses at most the last interval. The index of
+ * the writer thread gives the position and the timestamp of every message. If the
+ * files cannot be written anymore, the history stops and new messages are ignored.
+ */
+public class HistoryLog implements Closeable {
+
+	static private Logger logger = Logger.getLogger(HistoryLog.class.getName());
+	static private int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+	static private int MAX_FRAME_SIZE = 1 + 2 * Long.BYTES + 2 * (Integer.BYTES + 1_024);
+	static private long SEGMENT_SIZE = 16L << 20;
+	static private int BATCH_SIZE = 256 * 1_024;
+	static private int MAX_COUNT = 1_000;
+	static private String SUFFIX = ".log";
+
+	/**
+	 * A segment file and the index of its messages
+	 */
+	private static class Segment {
+		private final Path path;
+		private final long firstSequence;
+		private final FileChannel channel;
+		private long[] offsets = new long[256];
+		private long[] timestamps = new long[256];
+		private int count;
+		private long size;
+
+		private Segment(Path path, long firstSequence, FileChannel channel) {
+			this.path = path;
+			this.firstSequence = firstSequence;
+			this.channel = channel;
+		}
+
+		private void add(long offset, long timestamp) {
+			if (count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, count * 2);
+				timestamps = Arrays.copyOf(timestamps, count * 2);
+			}
+			offsets[count] = offset;
+			timestamps[count] = timestamp;
+			count++;
+		}
+
+		private long endSequence() {
+			return firstSequence + count;
+		}
+
+		private long offsetOf(long sequence) {
+			return sequence == endSequence() ? size : offsets[(int) (sequence - firstSequence)];
+		}
+
+		/**
+		 * @return the first sequence number of the segment with a timestamp not before time
+		 */
+		private long sequenceAt(long time) {
+			var index = Arrays.binarySearch(timestamps, 0, count, time);
+			if (index < 0)
+				return firstSequence - index - 1;
+			while (index > 0 && timestamps[index - 1] == time)
+				index--;
+			return firstSequence + index;
+		}
+	}
+
+	private final Path directory;
+	private final long syncIntervalNanos;
+	private final long retentionMillis;
+	private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+	private final Thread writer;
+	private final LongAdder appended = new LongAdder();
+	private final LongAdder syncs = new LongAdder();
+	private long nextSequence; // guarded by this
+	private long lastTimestamp; // guarded by this
+	private volatile boolean failed;
+
+	// only used by the writer thread once started
+	private final ArrayList<Segment> segments = new ArrayList<>();
+	private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+	private final CRC32 crc = new CRC32();
+	private boolean dirty;
+	private boolean running = true;
+
+	/**
+	 * Opens the log of a directory, scanning its segments, and starts the writer thread.
+	 *
+	 * @param directory created if needed
+	 * @param syncIntervalMillis maximum time between two writes to disk of the appended messages
+	 * @param retentionMillis segments whose messages are all older are deleted, 0 to keep everything
+	 * @throws IOException
+	 */
+	public HistoryLog(Path directory, long syncIntervalMillis, long retentionMillis) throws IOException {
+		if (syncIntervalMillis < 1 || retentionMillis < 0)
+			throw new IllegalArgumentException("invalid history intervals");
+		this.directory = Files.createDirectories(directory);
+		this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+		this.retentionMillis = retentionMillis;
+		recover();
+		nextSequence = segments.isEmpty() ? 1 : last().endSequence();
+		writer = new Thread(this::run, "history-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private Segment last() {
+		return segments.get(segments.size() - 1);
+	}
+
+	private void recover() throws IOException {
+		var paths = new ArrayList<Path>();
+		try (var stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			stream.forEach(paths::add);
+		}
+		paths.sort(null); // the names are zero-padded first sequences
+		for (var path : paths) {
+			long firstSequence;
+			try {
+				var name = path.getFileName().toString();
+				firstSequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if (!segments.isEmpty() && firstSequence != last().endSequence()) {
+				logger.warning("History segment " + path + " does not follow the previous one, it is ignored");
+				continue;
+			}
+			var segment = new Segment(path, firstSequence, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+			scan(segment);
+			segments.add(segment);
+		}
+	}
+
+	/**
+	 * Indexes the valid records of a segment and truncates what follows them
+	 */
+	private void scan(Segment segment) throws IOException {
+		var fileSize = segment.channel.size();
+		var header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		var frame = ByteBuffer.allocate(MAX_FRAME_SIZE);
+		var position = 0L;
+		while (position < fileSize) {
+			header.clear();
+			if (!readFully(segment.channel, header, position))
+				break;
+			var length = header.getInt(0);
+			if (length <= 1 + 2 * Long.BYTES || length > MAX_FRAME_SIZE)
+				break;
+			frame.clear().limit(length);
+			if (!readFully(segment.channel, frame, position + RECORD_HEADER_SIZE))
+				break;
+			crc.reset();
+			crc.update(frame.flip());
+			if ((int) crc.getValue() != header.getInt(Integer.BYTES) || frame.getLong(1) != segment.endSequence())
+				break;
+			segment.add(position, frame.getLong(1 + Long.BYTES));
+			position += RECORD_HEADER_SIZE + length;
+		}
+		if (position < fileSize) {
+			logger.warning("History segment " + segment.path + " truncated from " + fileSize + " to " + position + " bytes");
+			segment.channel.truncate(position);
+		}
+		segment.size = position;
+		if (segment.count != 0)
+			lastTimestamp = Math.max(lastTimestamp, segment.timestamps[segment.count - 1]);
+	}
+
+	private static boolean readFully(FileChannel channel, ByteBuffer bb, long position) throws IOException {
+		while (bb.hasRemaining()) {
+			var read = channel.read(bb, position);
+			if (read == -1)
+				return false;
+			position += read;
+		}
+		return true;
+	}
+
+	/**
+	 * Appends a public message to the history.
+	 *
+	 * May be called from any thread, the messages get their sequence numbers in the order of the calls.
+	 *
+	 * @param login
+	 * @param message
+	 */
+	public void append(String login, String message) {
+		if (failed)
+			return;
+		synchronized (this) {
+			var sequence = nextSequence++;
+			var timestamp = lastTimestamp = Math.max(lastTimestamp, System.currentTimeMillis());
+			tasks.add(() -> write(new FrameHistoryMessage(sequence, timestamp, login, message)));
+		}
+	}
+
+	/**
+	 * Reads messages of the history, after all the messages already appended.
+	 *
+	 * If fromSequence is negative, the last count messages with a timestamp not before
+	 * fromTime are read, otherwise the first count messages from fromSequence with a
+	 * timestamp not before fromTime. At most MAX_COUNT messages are read.
+	 *
+	 * @param fromSequence
+	 * @param fromTime in milliseconds since the epoch
+	 * @param count
+	 * @param consumer called on the writer thread with the encoded HISTORY_MESSAGE frames in read-mode, in order
+	 */
+	public void read(long fromSequence, long fromTime, long count, Consumer<List<ByteBuffer>> consumer) {
+		if (failed) {
+			consumer.accept(List.of());
+			return;
+		}
+		tasks.add(() -> {
+			List<ByteBuffer> frames;
+			try {
+				frames = readFrames(fromSequence, fromTime, Math.min(count, MAX_COUNT));
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Unable to read the history", e);
+				frames = List.of();
+			}
+			consumer.accept(frames);
+		});
+	}
+
+	/**
+	 * Stops the writer thread once the tasks already given are done, and closes the segments.
+	 */
+	@Override
+	public void close() {
+		tasks.add(() -> running = false);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		var drained = new ArrayList<Runnable>();
+		var nextSync = System.nanoTime() + syncIntervalNanos;
+		try {
+			while (running) {
+				var task = tasks.poll(Math.max(0, nextSync - System.nanoTime()), TimeUnit.NANOSECONDS);
+				if (task != null) {
+					drained.add(task);
+					tasks.drainTo(drained);
+					for (var drainedTask : drained)
+						drainedTask.run();
+					drained.clear();
+					flushBatch();
+				}
+				if (System.nanoTime() - nextSync >= 0) {
+					sync();
+					deleteExpiredSegments();
+					nextSync = System.nanoTime() + syncIntervalNanos;
+				}
+			}
+			sync();
+		} catch (IOException | UncheckedIOException e) {
+			failed = true;
+			logger.log(Level.SEVERE, "History stopped due to IOException", e);
+		} catch (InterruptedException e) {
+			// stopped
+		} finally {
+			for (var segment : segments)
+				closeChannel(segment);
+		}
+	}
+
+	/**
+	 * Adds a record to the batch, written to the last segment by flushBatch
+	 */
+	private void write(FrameHistoryMessage message) {
+		try {
+			if (segments.isEmpty() || last().size + batch.position() >= SEGMENT_SIZE)
+				roll(message.getLong().getAsLong());
+			var frame = message.asBuffer().flip();
+			if (batch.remaining() < RECORD_HEADER_SIZE + frame.remaining())
+				flushBatch();
+			crc.reset();
+			crc.update(frame.duplicate());
+			var segment = last();
+			segment.add(segment.size + batch.position(), message.getTimestamp());
+			batch.putInt(frame.remaining()).putInt((int) crc.getValue()).put(frame);
+			appended.increment();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void roll(long firstSequence) throws IOException {
+		flushBatch();
+		if (!segments.isEmpty())
+			last().channel.force(false);
+		var path = directory.resolve(String.format("%020d", firstSequence) + SUFFIX);
+		segments.add(new Segment(path, firstSequence, FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)));
+	}
+
+	private void flushBatch() throws IOException {
+		if (batch.position() == 0)
+			return;
+		var segment = last();
+		batch.flip();
+		while (batch.hasRemaining())
+			segment.size += segment.channel.write(batch, segment.size);
+		batch.clear();
+		dirty = true;
+	}
+
+	private void sync() throws IOException {
+		flushBatch();
+		if (!dirty)
+			return;
+		last().channel.force(false);
+		dirty = false;
+		syncs.increment();
+	}
+
+	private void deleteExpiredSegments() {
+		if (retentionMillis == 0)
+			return;
+		var limit = System.currentTimeMillis() - retentionMillis;
+		while (segments.size() > 1) { // the last segment is kept for the sequence numbers
+			var segment = segments.get(0);
+			if (segment.count != 0 && segment.timestamps[segment.count - 1] >= limit)
+				return;
+			segments.remove(0);
+			closeChannel(segment);
+			try {
+				Files.deleteIfExists(segment.path);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Unable to delete history segment " + segment.path, e);
+			}
+		}
+	}
+
+	private static void closeChannel(Segment segment) {
+		try {
+			segment.channel.close();
+		} catch (IOException e) {
+			// ignore exception
+		}
+	}
+
+	private List<ByteBuffer> readFrames(long fromSequence, long fromTime, long count) throws IOException {
+		flushBatch();
+		if (segments.isEmpty() || count <= 0)
+			return List.of();
+		var first = Math.max(segments.get(0).firstSequence, sequenceAt(fromTime));
+		var end = last().endSequence();
+		if (fromSequence < 0)
+			first = Math.max(first, end - count);
+		else {
+			first = Math.max(first, fromSequence);
+			end = Math.min(end, first + count);
+		}
+		var frames = new ArrayList<ByteBuffer>();
+		for (var segment : segments) {
+			if (segment.endSequence() <= first || segment.firstSequence >= end)
+				continue;
+			var from = Math.max(first, segment.firstSequence);
+			var to = Math.min(end, segment.endSequence());
+			var position = segment.offsetOf(from);
+			var bytes = ByteBuffer.allocate((int) (segment.offsetOf(to) - position));
+			if (!readFully(segment.channel, bytes, position))
+				throw new IOException("History segment " + segment.path + " truncated");
+			bytes.flip();
+			while (bytes.hasRemaining()) {
+				var length = bytes.getInt();
+				bytes.position(bytes.position() + Integer.BYTES);
+				var frame = bytes.slice().limit(length);
+				frames.add(frame.asReadOnlyBuffer());
+				bytes.position(bytes.position() + length);
+			}
+		}
+		return frames;
+	}
+
+	/**
+	 * @return the first sequence number with a timestamp not before time
+	 */
+	private long sequenceAt(long time) {
+		for (var segment : segments)
+			if (segment.count != 0 && segment.timestamps[segment.count - 1] >= time)
+				return segment.sequenceAt(time);
+		return last().endSequence();
+	}
+
+	/**
+	 * @return the number of messages appended since the log was opened
+	 */
+	public long appendedCount() {
+		return appended.sum();
+	}
+
+	/**
+	 * @return the number of times the appended messages were forced to disk
+	 */
+	public long syncCount() {
+		return syncs.sum();
+	}
+
+	/**
+	 * @return the sequence number of the last appended message, 0 if there is none
+	 */
+	public synchronized long lastSequence() {
+		return nextSequence - 1;
+	}
+}
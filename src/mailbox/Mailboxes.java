@@ -0,0 +1,434 @@
+package mailbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Mailboxes keeping the frames sent to logins which are not connected.
+ *
+ * A mailbox holds at most maxMessages frames, the oldest are dropped first, and a
+ * frame expires ttl milliseconds after it was deposited. The frames of all the
+ * mailboxes are kept in memory up to maxMemoryBytes, then the new frames of a
+ * mailbox are appended to a spill file, which is read back when the mailbox is
+ * delivered. A spill file is rewritten without its dropped and expired records
+ * once they outnumber the frames a mailbox may hold, so its size stays bounded.
+ * The spill files only live as long as the server.
+ *
+ * The mailboxes are only touched by a worker thread: deposit and drain hand tasks
+ * over to it and never block the caller. A mailbox is delivered as a single buffer
+ * holding all its frames, so the recipient writes them with as few writes as possible.
+ */
+public class Mailboxes implements Closeable {
+
+	static private Logger logger = Logger.getLogger(Mailboxes.class.getName());
+	static private long SWEEP_PERIOD_NANOS = 1_000_000_000L;
+	static private int RECORD_HEADER_SIZE = Long.BYTES + Integer.BYTES;
+	static private String SUFFIX = ".spill";
+
+	/**
+	 * Connected login a mailbox is delivered to
+	 */
+	@FunctionalInterface
+	public interface Recipient {
+		/**
+		 * Called on the worker thread.
+		 *
+		 * @param frames the encoded frames one after the other, in read-mode
+		 * @param count the number of frames
+		 */
+		void deliver(ByteBuffer frames, int count);
+	}
+
+	private static class Entry {
+		private final long expiresAt;
+		private final ByteBuffer frame;
+
+		private Entry(long expiresAt, ByteBuffer frame) {
+			this.expiresAt = expiresAt;
+			this.frame = frame;
+		}
+	}
+
+	private static class Mailbox {
+		private final ArrayDeque<Entry> memory = new ArrayDeque<>(); // older than the spilled frames
+		private final ArrayDeque<Long> spilled = new ArrayDeque<>(); // expiration of each frame of the spill file
+		private Path spillFile;
+		private int skipped; // leading records of the spill file dropped or expired
+
+		private int size() {
+			return memory.size() + spilled.size();
+		}
+	}
+
+	private final Function<String, Recipient> recipients;
+	private final int maxMessages;
+	private final long ttlMillis;
+	private final long maxMemoryBytes;
+	private Path spillDirectory; // created with the first spill file if null
+	private boolean temporarySpillDirectory;
+	private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+	private final Thread worker;
+	private final LongAdder deposited = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder spills = new LongAdder();
+	private volatile long memoryBytes;
+	private volatile long stored;
+
+	// only used by the worker thread
+	private final HashMap<String, Mailbox> mailboxes = new HashMap<>();
+	private long nextSpillId;
+	private boolean running = true;
+
+	/**
+	 * Creates the mailboxes and starts their worker thread.
+	 *
+	 * @param recipients gives the recipient of a login if it is connected, null otherwise, called on the worker thread
+	 * @param maxMessages maximum number of frames of a mailbox
+	 * @param ttlMillis time after which a frame is dropped
+	 * @param maxMemoryBytes maximum number of bytes of the frames kept in memory
+	 * @param spillDirectory directory of the spill files, null for a temporary directory
+	 * @throws IOException
+	 */
+	public Mailboxes(Function<String, Recipient> recipients, int maxMessages, long ttlMillis, long maxMemoryBytes,
+			Path spillDirectory) throws IOException {
+		if (maxMessages < 1 || ttlMillis < 1 || maxMemoryBytes < 0)
+			throw new IllegalArgumentException("invalid mailbox limits");
+		this.recipients = recipients;
+		this.maxMessages = maxMessages;
+		this.ttlMillis = ttlMillis;
+		this.maxMemoryBytes = maxMemoryBytes;
+		if (spillDirectory != null) {
+			this.spillDirectory = Files.createDirectories(spillDirectory);
+			deleteSpillFiles(); // left by a previous run
+		}
+		worker = new Thread(this::run, "mailboxes");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Keeps a frame for a login until it connects.
+	 *
+	 * If the login connected in the meantime, the mailbox is delivered right away.
+	 * May be called from any thread.
+	 *
+	 * @param login
+	 * @param frame an encoded frame in read-mode, which must not be modified anymore
+	 */
+	public void deposit(String login, ByteBuffer frame) {
+		tasks.add(() -> {
+			store(login, frame);
+			var recipient = recipients.apply(login);
+			if (recipient != null)
+				deliver(login, recipient);
+		});
+	}
+
+	/**
+	 * Delivers the mailbox of a login which just connected, if it is not empty.
+	 *
+	 * May be called from any thread.
+	 *
+	 * @param login
+	 */
+	public void drain(String login) {
+		tasks.add(() -> {
+			var recipient = recipients.apply(login);
+			if (recipient != null)
+				deliver(login, recipient);
+		});
+	}
+
+	/**
+	 * Stops the worker thread once the tasks already given are done, and deletes the spill files.
+	 */
+	@Override
+	public void close() {
+		tasks.add(() -> running = false);
+		try {
+			worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		var drained = new ArrayList<Runnable>();
+		var nextSweep = System.nanoTime() + SWEEP_PERIOD_NANOS;
+		try {
+			while (running) {
+				var task = tasks.poll(Math.max(0, nextSweep - System.nanoTime()), TimeUnit.NANOSECONDS);
+				if (task != null) {
+					drained.add(task);
+					tasks.drainTo(drained);
+					for (var drainedTask : drained)
+						drainedTask.run();
+					drained.clear();
+				}
+				if (System.nanoTime() - nextSweep >= 0) {
+					sweep();
+					nextSweep = System.nanoTime() + SWEEP_PERIOD_NANOS;
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} finally {
+			if (spillDirectory != null)
+				deleteSpillFiles();
+			if (temporarySpillDirectory) {
+				try {
+					Files.deleteIfExists(spillDirectory);
+				} catch (IOException e) {
+					// ignore exception
+				}
+			}
+		}
+	}
+
+	private void store(String login, ByteBuffer frame) {
+		var mailbox = mailboxes.computeIfAbsent(login, __ -> new Mailbox());
+		if (mailbox.size() == maxMessages) {
+			dropOldest(mailbox);
+			dropped.increment();
+		}
+		var expiresAt = System.currentTimeMillis() + ttlMillis;
+		if (mailbox.spilled.isEmpty() && memoryBytes + frame.remaining() <= maxMemoryBytes) {
+			mailbox.memory.add(new Entry(expiresAt, frame));
+			memoryBytes += frame.remaining();
+		}
+		else {
+			try {
+				spill(mailbox, expiresAt, frame);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Unable to spill a mailbox to disk, the frame is dropped", e);
+				dropped.increment();
+				return;
+			}
+		}
+		stored++;
+		deposited.increment();
+	}
+
+	private void dropOldest(Mailbox mailbox) {
+		var entry = mailbox.memory.poll();
+		if (entry != null)
+			memoryBytes -= entry.frame.remaining();
+		else {
+			mailbox.spilled.remove();
+			mailbox.skipped++;
+			if (mailbox.skipped > maxMessages)
+				compactSpillFile(mailbox);
+		}
+		stored--;
+	}
+
+	private void spill(Mailbox mailbox, long expiresAt, ByteBuffer frame) throws IOException {
+		if (mailbox.spillFile == null) {
+			if (spillDirectory == null) {
+				spillDirectory = Files.createTempDirectory("chaton-mailboxes");
+				temporarySpillDirectory = true;
+			}
+			mailbox.spillFile = spillDirectory.resolve("mailbox-" + nextSpillId++ + SUFFIX);
+		}
+		var header = ByteBuffer.allocate(RECORD_HEADER_SIZE).putLong(expiresAt).putInt(frame.remaining()).flip();
+		var record = new ByteBuffer[] { header, frame.duplicate() };
+		try (var channel = FileChannel.open(mailbox.spillFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND)) {
+			while (record[1].hasRemaining())
+				channel.write(record);
+		}
+		mailbox.spilled.add(expiresAt);
+		spills.increment();
+	}
+
+	/**
+	 * Hands the frames of a mailbox which did not expire over to its recipient, and removes the mailbox
+	 */
+	private void deliver(String login, Recipient recipient) {
+		var mailbox = mailboxes.remove(login);
+		if (mailbox == null)
+			return;
+		var now = System.currentTimeMillis();
+		var frames = new ArrayList<ByteBuffer>();
+		var bytes = 0;
+		for (var entry : mailbox.memory) {
+			memoryBytes -= entry.frame.remaining();
+			if (entry.expiresAt > now) {
+				frames.add(entry.frame.duplicate());
+				bytes += entry.frame.remaining();
+			}
+		}
+		if (mailbox.spillFile != null) {
+			try {
+				var spilled = readSpillFile(mailbox);
+				while (spilled.remaining() >= RECORD_HEADER_SIZE) {
+					var expiresAt = spilled.getLong();
+					var length = spilled.getInt();
+					if (length < 0 || length > spilled.remaining()) // damaged or truncated record
+						break;
+					var frame = spilled.slice();
+					frame.limit(length);
+					spilled.position(spilled.position() + length);
+					if (expiresAt > now) {
+						frames.add(frame);
+						bytes += frame.remaining();
+					}
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Unable to read the spilled mailbox of " + login, e);
+			}
+			deleteSpillFile(mailbox);
+		}
+		stored -= mailbox.size();
+		expired.add(mailbox.size() - frames.size());
+		if (frames.isEmpty())
+			return;
+		var batch = ByteBuffer.allocate(bytes);
+		for (var frame : frames)
+			batch.put(frame);
+		recipient.deliver(batch.flip(), frames.size());
+		delivered.add(frames.size());
+	}
+
+	/**
+	 * Drops the expired frames of all the mailboxes
+	 */
+	private void sweep() {
+		var now = System.currentTimeMillis();
+		var iterator = mailboxes.values().iterator();
+		while (iterator.hasNext()) {
+			var mailbox = iterator.next();
+			while (!mailbox.memory.isEmpty() && mailbox.memory.peek().expiresAt <= now) {
+				memoryBytes -= mailbox.memory.remove().frame.remaining();
+				stored--;
+				expired.increment();
+			}
+			while (!mailbox.spilled.isEmpty() && mailbox.spilled.peek() <= now) {
+				mailbox.spilled.remove();
+				mailbox.skipped++;
+				stored--;
+				expired.increment();
+			}
+			if (mailbox.spilled.isEmpty() && mailbox.spillFile != null)
+				deleteSpillFile(mailbox);
+			else if (mailbox.skipped > maxMessages)
+				compactSpillFile(mailbox);
+			if (mailbox.size() == 0)
+				iterator.remove();
+		}
+	}
+
+	/**
+	 * @return the records of the spill file following the skipped ones, in read-mode
+	 * @throws IOException
+	 */
+	private ByteBuffer readSpillFile(Mailbox mailbox) throws IOException {
+		var records = ByteBuffer.wrap(Files.readAllBytes(mailbox.spillFile));
+		for (var i = 0; i < mailbox.skipped && records.remaining() >= RECORD_HEADER_SIZE; i++) {
+			var length = records.getInt(records.position() + Long.BYTES);
+			if (length < 0 || length > records.remaining() - RECORD_HEADER_SIZE) { // damaged or truncated record
+				records.position(records.limit());
+				break;
+			}
+			records.position(records.position() + RECORD_HEADER_SIZE + length);
+		}
+		return records;
+	}
+
+	/**
+	 * Rewrites the spill file without its skipped records
+	 */
+	private void compactSpillFile(Mailbox mailbox) {
+		// ends with the suffix to be deleted with the spill files if the server stops meanwhile
+		var compacted = mailbox.spillFile.resolveSibling("compacted-" + mailbox.spillFile.getFileName());
+		try {
+			var records = readSpillFile(mailbox);
+			try (var channel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				while (records.hasRemaining())
+					channel.write(records);
+			}
+			Files.move(compacted, mailbox.spillFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			mailbox.skipped = 0;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to compact " + mailbox.spillFile, e);
+		}
+	}
+
+	private void deleteSpillFile(Mailbox mailbox) {
+		try {
+			Files.deleteIfExists(mailbox.spillFile);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to delete " + mailbox.spillFile, e);
+		}
+		mailbox.spillFile = null;
+		mailbox.skipped = 0;
+	}
+
+	private void deleteSpillFiles() {
+		try (var stream = Files.newDirectoryStream(spillDirectory, "*" + SUFFIX)) {
+			for (var path : stream)
+				Files.deleteIfExists(path);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to delete the spill files of " + spillDirectory, e);
+		}
+	}
+
+	/**
+	 * @return the number of frames waiting in the mailboxes
+	 */
+	public long storedCount() {
+		return stored;
+	}
+
+	/**
+	 * @return the number of bytes of the frames waiting in memory
+	 */
+	public long memoryBytes() {
+		return memoryBytes;
+	}
+
+	public long depositedCount() {
+		return deposited.sum();
+	}
+
+	public long deliveredCount() {
+		return delivered.sum();
+	}
+
+	/**
+	 * @return the number of frames dropped because their mailbox was full or could not be spilled
+	 */
+	public long droppedCount() {
+		return dropped.sum();
+	}
+
+	public long expiredCount() {
+		return expired.sum();
+	}
+
+	/**
+	 * @return the number of frames written to a spill file
+	 */
+	public long spilledCount() {
+		return spills.sum();
+	}
+}
@@ -3,115 +3,238 @@ package readers;
 import frames.*;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Reads a frame in a single pass over the buffer.
+ *
+ * The fields of each frame are described by the LAYOUTS table, indexed by opcode.
+ * The reader keeps its state between calls and between frames: the only objects
+ * allocated for a frame are its strings, its bytes and the frame itself.
+ *
+ * The convention is that bb is in write-mode before the call to process and after the call.
+ */
 public class FrameReader implements Reader{
 
 
-    private enum State { DONE, WAITING_ID, WAITING_CONTENT, ERROR };
+    private enum State { DONE, WAITING_OPCODE, WAITING_FIELDS, ERROR };
+    private enum Field { STRING, LONG, BYTES };
+
+    static private final Field[][] LAYOUTS = {
+            { Field.STRING },                             // 0 LOGIN
+            {},                                           // 1 LOGIN_ACCEPTED
+            {},                                           // 2 LOGIN_REFUSED
+            { Field.STRING, Field.STRING },               // 3 MESSAGE
+            { Field.STRING, Field.STRING, Field.STRING }, // 4 MESSAGE_PRIVATE
+            { Field.STRING, Field.STRING },               // 5 REQUEST_PRIVATE
+            { Field.STRING, Field.STRING },               // 6 OK_PRIVATE
+            { Field.STRING, Field.STRING },               // 7 KO_PRIVATE
+            { Field.STRING, Field.STRING, Field.LONG },   // 8 ID_PRIVATE
+            { Field.LONG },                               // 9 LOGIN_PRIVATE
+            {},                                           // 10 ESTABLISHED
+            { Field.LONG, Field.LONG, Field.LONG },       // 11 HISTORY_REQUEST
+            { Field.LONG, Field.LONG, Field.STRING, Field.STRING }, // 12 HISTORY_MESSAGE
+            { Field.STRING, Field.STRING },               // 13 JOIN
+            { Field.STRING, Field.STRING },               // 14 LEAVE
+            { Field.STRING, Field.STRING, Field.STRING }, // 15 ROOM_MESSAGE
+            { Field.LONG, Field.LONG, Field.STRING },     // 16 CLUSTER
+            { Field.BYTES },                              // 17 BATCH
+            { Field.STRING },                             // 18 COMPRESSION_REQUEST
+            { Field.STRING },                             // 19 COMPRESSION_ACCEPTED
+            { Field.BYTES },                              // 20 COMPRESSED
+            { Field.LONG },                               // 21 PING
+            { Field.LONG },                               // 22 PONG
+    };
+    static private final int MAX_STRINGS = 3;
+    static private final int MAX_LONGS = 3;
+
+    /**
+     * Number of opcodes known by the reader, which are 0 to NB_OPCODES - 1
+     */
+    static public final int NB_OPCODES = LAYOUTS.length;
 
     private final ByteBuffer bb;
-    private State state = State.WAITING_ID;
-    private int ID;
-    private FrameReaderAux frameReaderAux=null;
+    private State state = State.WAITING_OPCODE;
+    private int opcode;
+    private Field[] layout;
+    private int field;
+    private final String[] strings = new String[MAX_STRINGS];
+    private int nbStrings;
+    private int size = -1;
+    private final long[] longs = new long[MAX_LONGS];
+    private int nbLongs;
+    private ByteBuffer bytes; // read-mode
+    private byte[] scratch = new byte[0];
     private Frame frame;
+
     public FrameReader(ByteBuffer bb) {
         this.bb = bb;
+    }
 
+    /**
+     * Reads the frames inflated from a COMPRESSED frame, which cannot contain
+     * another COMPRESSED frame
+     *
+     * @param bb the frames in write-mode, consumed by the call
+     * @throws IllegalArgumentException if a frame is ill-formed or truncated
+     */
+    static public List<Frame> readInflated(ByteBuffer bb) {
+        var reader = new FrameReader(bb);
+        var frames = new ArrayList<Frame>();
+        while (bb.position() != 0) {
+            if (reader.process() != ProcessStatus.DONE)
+                throw new IllegalArgumentException("ill-formed or truncated frame");
+            var frame = (Frame) reader.get();
+            if (frame instanceof FrameCompressed)
+                throw new IllegalArgumentException("nested compressed frame");
+            frames.add(frame);
+            reader.reset();
+        }
+        return frames;
     }
 
     @Override
     public ProcessStatus process() {
-
-            switch (state) {
-                case WAITING_ID:
-                    if (bb.flip().remaining() < Byte.BYTES){
-                        bb.compact();
-                        return ProcessStatus.REFILL;
-                    }
-
-                    ID = bb.get();
-                    bb.compact();
-                    state = State.WAITING_CONTENT;
-//                    System.out.println("got ID");
-                    switch (ID){
-                        case 0:
-                            frameReaderAux=new FrameReaderAux(bb,1,false);
-                            break;
-                        case 1:
-                            frame=new FrameLoginAccepted();
-                            state= State.DONE;
-                            return  ProcessStatus.DONE;
-                        case 2:
-                            frame=new FrameLoginRefused();
-                            state= State.DONE;
-                            return  ProcessStatus.DONE;
-
-                        case 3:
-                        case 5:
-                        case 6:
-                        case 7:
-                            frameReaderAux=new FrameReaderAux(bb,2,false);
-                            break;
-                        case 4:
-                            frameReaderAux=new FrameReaderAux(bb,3,false);
-                            break;
-                        case 8:
-                            frameReaderAux=new FrameReaderAux(bb,2,true);
-                            break;
-                        case 9:
-                            frameReaderAux=new FrameReaderAux(bb,0,true);
-                            break;
-                        case 10:
-                            frame=new FrameEstablished();
-                            state= State.DONE;
-                            return  ProcessStatus.DONE;
-
-                    }
-                case WAITING_CONTENT:
-                    switch (frameReaderAux.process()){
-                        case DONE:
-                            StringsAndLong stringsAndLong= (StringsAndLong) frameReaderAux.get();
-
-                            switch (ID){
-                                case 0:
-                                    frame=new FrameLogin(stringsAndLong.getArrayList().get(0));
-                                    break;
-                                case 3:
-                                    frame=new FrameMessage(stringsAndLong.getArrayList().get(0),stringsAndLong.getArrayList().get(1));
-                                    break;
-                                case 4:
-                                    frame=new FrameMessagePrivate(stringsAndLong.getArrayList().get(0),stringsAndLong.getArrayList().get(1),stringsAndLong.getArrayList().get(2));
-                                    break;
-                                case 5:
-                                    frame=new FrameRequestPrivate(stringsAndLong.getArrayList().get(0),stringsAndLong.getArrayList().get(1));
-                                    break;
-                                case 6:
-                                    frame=new FrameOkPrivate(stringsAndLong.getArrayList().get(0),stringsAndLong.getArrayList().get(1));
-                                    break;
-                                case 7:
-                                    frame=new FrameKoPrivate(stringsAndLong.getArrayList().get(0),stringsAndLong.getArrayList().get(1));
-                                    break;
-                                case 8:
-                                    frame=new FrameIdPrivate(stringsAndLong.getArrayList().get(0),stringsAndLong.getArrayList().get(1), stringsAndLong.getaLong());
-                                    break;
-                                case 9:
-                                    frame=new FrameLoginPrivate(stringsAndLong.getaLong());
-                                    break;
-
-
-                            }
-                            state= State.DONE;
-                            return  ProcessStatus.DONE;
-                        case REFILL:
-                            return  ProcessStatus.REFILL;
-                        case ERROR:
-                            return  ProcessStatus.ERROR;
-
-                    }
-                default:
-                    throw new IllegalStateException();
+        if (state == State.DONE || state == State.ERROR) {
+            throw new IllegalStateException();
+        }
+        bb.flip();
+        try {
+            if (state == State.WAITING_OPCODE) {
+                if (!bb.hasRemaining())
+                    return ProcessStatus.REFILL;
+                opcode = bb.get();
+                if (opcode < 0 || opcode >= LAYOUTS.length)
+                    return error();
+                layout = LAYOUTS[opcode];
+                field = 0;
+                nbStrings = 0;
+                nbLongs = 0;
+                state = State.WAITING_FIELDS;
+            }
+            for (; field < layout.length; field++) {
+                switch (layout[field]) {
+                    case STRING:
+                        if (size < 0) {
+                            if (bb.remaining() < Integer.BYTES)
+                                return ProcessStatus.REFILL;
+                            size = bb.getInt();
+                            if (size < 0 || size > bb.capacity())
+                                return error();
+                        }
+                        if (bb.remaining() < size)
+                            return ProcessStatus.REFILL;
+                        strings[nbStrings++] = decodeString();
+                        size = -1;
+                        break;
+                    case LONG:
+                        if (bb.remaining() < Long.BYTES)
+                            return ProcessStatus.REFILL;
+                        longs[nbLongs++] = bb.getLong();
+                        break;
+                    case BYTES:
+                        if (size < 0) {
+                            if (bb.remaining() < Integer.BYTES)
+                                return ProcessStatus.REFILL;
+                            size = bb.getInt();
+                            if (size < 0 || size > bb.capacity())
+                                return error();
+                        }
+                        if (bb.remaining() < size)
+                            return ProcessStatus.REFILL;
+                        bytes = ByteBuffer.allocate(size);
+                        bb.get(bytes.array());
+                        size = -1;
+                        break;
+                }
             }
+            try {
+                frame = createFrame();
+            } catch (IllegalArgumentException e) { // blank or too long fields
+                return error();
+            }
+            state = State.DONE;
+            return ProcessStatus.DONE;
+        } finally {
+            bb.compact();
+        }
+    }
+
+    private ProcessStatus error() {
+        state = State.ERROR;
+        return ProcessStatus.ERROR;
+    }
 
+    /**
+     * Decodes the next size bytes of bb, the buffer being in read-mode
+     */
+    private String decodeString() {
+        String value;
+        if (bb.hasArray()) {
+            value = new String(bb.array(), bb.arrayOffset() + bb.position(), size, StandardCharsets.UTF_8);
+            bb.position(bb.position() + size);
+        } else {
+            if (scratch.length < size)
+                scratch = new byte[bb.capacity()];
+            bb.get(scratch, 0, size);
+            value = new String(scratch, 0, size, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    private Frame createFrame() {
+        switch (opcode) {
+            case 0:
+                return new FrameLogin(strings[0]);
+            case 1:
+                return new FrameLoginAccepted();
+            case 2:
+                return new FrameLoginRefused();
+            case 3:
+                return new FrameMessage(strings[0], strings[1]);
+            case 4:
+                return new FrameMessagePrivate(strings[0], strings[1], strings[2]);
+            case 5:
+                return new FrameRequestPrivate(strings[0], strings[1]);
+            case 6:
+                return new FrameOkPrivate(strings[0], strings[1]);
+            case 7:
+                return new FrameKoPrivate(strings[0], strings[1]);
+            case 8:
+                return new FrameIdPrivate(strings[0], strings[1], longs[0]);
+            case 9:
+                return new FrameLoginPrivate(longs[0]);
+            case 10:
+                return new FrameEstablished();
+            case 11:
+                return new FrameHistoryRequest(longs[0], longs[1], longs[2]);
+            case 12:
+                return new FrameHistoryMessage(longs[0], longs[1], strings[0], strings[1]);
+            case 13:
+                return new FrameJoinRoom(strings[0], strings[1]);
+            case 14:
+                return new FrameLeaveRoom(strings[0], strings[1]);
+            case 15:
+                return new FrameRoomMessage(strings[0], strings[1], strings[2]);
+            case 16:
+                return new FrameCluster(longs[0], longs[1], strings[0]);
+            case 17:
+                return FrameBatch.decode(bytes);
+            case 18:
+                return new FrameCompressionRequest(strings[0]);
+            case 19:
+                return new FrameCompressionAccepted(strings[0]);
+            case 20:
+                return new FrameCompressed(bytes);
+            case 21:
+                return new FramePing(longs[0]);
+            case 22:
+                return new FramePong(longs[0]);
+            default:
+                throw new AssertionError("no layout for opcode " + opcode);
+        }
     }
 
     @Override
@@ -124,8 +247,15 @@ public class FrameReader implements Reader{
 
     @Override
     public void reset() {
-        frameReaderAux=null;
-        state = State.WAITING_ID;
-        frame=null;
+        state = State.WAITING_OPCODE;
+        frame = null;
+        layout = null;
+        field = 0;
+        size = -1; // an ERROR may leave the length of a field read
+        bytes = null;
+        for (var i = 0; i < nbStrings; i++)
+            strings[i] = null;
+        nbStrings = 0;
+        nbLongs = 0;
     }
 }
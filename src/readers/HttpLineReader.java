@@ -1,4 +1,93 @@
 package readers;
 
-public class HttpLineReader {
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a line terminated by CRLF, as found in HTTP headers.
+ *
+ * The buffer is scanned for the end of the line and the bytes of the line are
+ * copied in bulk, so a line received in several parts is resumed where it stopped.
+ * A bare LF is also accepted as the end of a line. Lines longer than
+ * MAX_LINE_LENGTH are an error.
+ */
+public class HttpLineReader implements Reader {
+
+    private enum State {DONE,WAITING,ERROR};
+
+    static private int MAX_LINE_LENGTH = 8_192;
+
+    private final ByteBuffer bb;
+    private State state = State.WAITING;
+    private byte[] bytes = new byte[128];
+    private int length;
+    private String value;
+
+    public HttpLineReader(ByteBuffer bb) {
+        this.bb = bb;
+    }
+
+    @Override
+    public ProcessStatus process() {
+        if (state==State.DONE || state==State.ERROR) {
+            throw new IllegalStateException();
+        }
+        bb.flip();
+        try {
+            var end = bb.position();
+            while (end < bb.limit() && bb.get(end) != '\n') {
+                end++;
+            }
+            var found = end < bb.limit();
+            if (!append(found ? end + 1 - bb.position() : bb.remaining())) {
+                state = State.ERROR;
+                return ProcessStatus.ERROR;
+            }
+            if (!found) {
+                return ProcessStatus.REFILL;
+            }
+            length--; // LF
+            if (length > 0 && bytes[length - 1] == '\r') {
+                length--;
+            }
+            value = new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            state = State.DONE;
+            return ProcessStatus.DONE;
+        } finally {
+            bb.compact();
+        }
+    }
+
+    /**
+     * Moves n bytes of bb at the end of the line.
+     *
+     * @return false if the line is too long
+     */
+    private boolean append(int n) {
+        if (length + n > MAX_LINE_LENGTH + 2) {
+            return false;
+        }
+        if (length + n > bytes.length) {
+            var newBytes = new byte[Math.min(Math.max(bytes.length * 2, length + n), MAX_LINE_LENGTH + 2)];
+            System.arraycopy(bytes, 0, newBytes, 0, length);
+            bytes = newBytes;
+        }
+        bb.get(bytes, length, n);
+        length += n;
+        return true;
+    }
+
+    @Override
+    public Object get() {
+        if (state!=State.DONE) {
+            throw new IllegalStateException();
+        }
+        return value;
+    }
+
+    @Override
+    public void reset() {
+        state=State.WAITING;
+        length = 0;
+    }
 }
@@ -0,0 +1,52 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+import frames.FrameCompressed;
+
+/**
+ * A frame fanned out to many clients, encoded once and compressed at most once.
+ *
+ * The COMPRESSED frame is computed by the reactor of the first recipient which
+ * negotiated the compression, with the codec of that reactor, and every other such
+ * recipient gets its own view of it.
+ */
+class Broadcast {
+
+	static private final ByteBuffer NOT_COMPRESSED = ByteBuffer.allocate(0);
+
+	private final ByteBuffer encodedMsg;
+	private volatile ByteBuffer compressedMsg;
+
+	/**
+	 * @param encodedMsg in read-mode, never modified
+	 */
+	Broadcast(ByteBuffer encodedMsg) {
+		this.encodedMsg = encodedMsg;
+	}
+
+	/**
+	 * @return a view of the encoded frame
+	 */
+	ByteBuffer encoded() {
+		return encodedMsg.duplicate();
+	}
+
+	/**
+	 * @param codec the codec of the reactor of the caller
+	 * @return a view of the COMPRESSED frame, or null if compressing does not pay off
+	 */
+	ByteBuffer compressed(FrameCompressed.Codec codec) {
+		var compressed = compressedMsg;
+		if (compressed == null) {
+			synchronized (this) {
+				compressed = compressedMsg;
+				if (compressed == null) {
+					compressed = codec.compress(encodedMsg, FrameCompressed.MAX_SERVER_DATA_BYTES);
+					compressedMsg = compressed = compressed == null ? NOT_COMPRESSED : compressed.asReadOnlyBuffer();
+				}
+			}
+		}
+		return compressed == NOT_COMPRESSED ? null : compressed.duplicate();
+	}
+}
@@ -0,0 +1,178 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Ring of encoded frames waiting to be written on a connection.
+ *
+ * The buffers are kept in read-mode and are never copied: their position
+ * records how much of each frame has already been written, so a partial
+ * write simply resumes from there on the next call to {@link #writeTo}.
+ *
+ * Public frames are marked so that a slow consumer policy can drop them
+ * first. A frame that has started to be written is never dropped.
+ *
+ * A dropped frame is replaced in its slot by an empty buffer, which the
+ * gathering writes simply skip, and the ring is compacted once such slots
+ * outnumber the frames. The search for the next frame to drop resumes where
+ * the previous one stopped, so dropping costs a constant amortized time.
+ */
+class FrameRing {
+
+	static private int INITIAL_CAPACITY = 16;
+	static private int MAX_GATHER = 64;
+	static private final ByteBuffer DROPPED = ByteBuffer.allocate(0);
+
+	private ByteBuffer[] buffers = new ByteBuffer[INITIAL_CAPACITY];
+	private boolean[] publics = new boolean[INITIAL_CAPACITY];
+	private int head;
+	private int slots; // frames and dropped frames
+	private int size; // frames
+	private long remainingBytes;
+	private boolean headStarted;
+	// ranks before which no frame, or no public frame, may be dropped
+	private int nextDrop;
+	private int nextPublicDrop;
+
+	/**
+	 * @param frame an encoded frame in read-mode
+	 */
+	void add(ByteBuffer frame) {
+		add(frame, false);
+	}
+
+	/**
+	 * @param frame an encoded frame in read-mode
+	 * @param isPublic true if the frame is a public message that may be dropped
+	 */
+	void add(ByteBuffer frame, boolean isPublic) {
+		if (slots == buffers.length)
+			grow();
+		var index = indexOf(slots);
+		buffers[index] = frame;
+		publics[index] = isPublic;
+		slots++;
+		size++;
+		remainingBytes += frame.remaining();
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the number of frames not yet completely written
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of bytes not yet written
+	 */
+	long remainingBytes() {
+		return remainingBytes;
+	}
+
+	/**
+	 * Removes the oldest frame that has not started to be written.
+	 *
+	 * @param publicOnly if true only public frames are considered
+	 * @return false if there was no such frame
+	 */
+	boolean dropOldest(boolean publicOnly) {
+		var rank = Math.max(publicOnly ? nextPublicDrop : nextDrop, headStarted ? 1 : 0);
+		while (rank < slots && (buffers[indexOf(rank)] == DROPPED || publicOnly && !publics[indexOf(rank)]))
+			rank++;
+		if (rank == slots) {
+			if (publicOnly)
+				nextPublicDrop = rank;
+			else
+				nextDrop = rank;
+			return false;
+		}
+		var index = indexOf(rank);
+		remainingBytes -= buffers[index].remaining();
+		buffers[index] = DROPPED;
+		size--;
+		if (publicOnly)
+			nextPublicDrop = rank + 1;
+		else
+			nextDrop = rank + 1;
+		if (slots - size > Math.max(size, INITIAL_CAPACITY))
+			compact();
+		return true;
+	}
+
+	/**
+	 * Writes as many frames as the channel accepts, up to MAX_GATHER frames per write.
+	 *
+	 * @param channel
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	long writeTo(GatheringByteChannel channel) throws IOException {
+		var written = 0L;
+		while (slots != 0) {
+			var length = Math.min(Math.min(slots, buffers.length - head), MAX_GATHER);
+			var n = channel.write(buffers, head, length);
+			written += n;
+			var completed = 0;
+			while (completed < length && !buffers[head].hasRemaining()) {
+				if (buffers[head] != DROPPED)
+					size--;
+				buffers[head] = null;
+				head = (head + 1) & (buffers.length - 1);
+				slots--;
+				nextDrop = Math.max(nextDrop - 1, 0);
+				nextPublicDrop = Math.max(nextPublicDrop - 1, 0);
+				completed++;
+				headStarted = false;
+			}
+			if (completed < length) { // the socket buffer is full
+				headStarted |= n != 0;
+				break;
+			}
+		}
+		remainingBytes -= written;
+		return written;
+	}
+
+	private int indexOf(int rank) {
+		return (head + rank) & (buffers.length - 1);
+	}
+
+	private void grow() {
+		var newBuffers = new ByteBuffer[buffers.length * 2];
+		var newPublics = new boolean[buffers.length * 2];
+		for (var i = 0; i < slots; i++) {
+			newBuffers[i] = buffers[indexOf(i)];
+			newPublics[i] = publics[indexOf(i)];
+		}
+		buffers = newBuffers;
+		publics = newPublics;
+		head = 0;
+	}
+
+	/**
+	 * Removes the slots of the dropped frames, keeping the order of the others
+	 */
+	private void compact() {
+		var kept = 0;
+		for (var i = 0; i < slots; i++) {
+			var index = indexOf(i);
+			var buffer = buffers[index];
+			buffers[index] = null;
+			if (buffer == DROPPED)
+				continue;
+			var target = indexOf(kept++);
+			buffers[target] = buffer;
+			publics[target] = publics[index];
+		}
+		slots = kept;
+		nextDrop = 0;
+		nextPublicDrop = 0;
+	}
+}
@@ -0,0 +1,78 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logins of the connected clients, shared by all the reactors.
+ *
+ * Registrations and lookups go through a concurrent map. Broadcasts iterate
+ * over an immutable snapshot of the registered values, rebuilt lazily after
+ * a change, so they take no lock and are not disturbed by concurrent logins.
+ *
+ * @param <T> what is registered for each login
+ */
+class LoginRegistry<T> {
+
+	private static class Snapshot<T> {
+		private final long version;
+		private final List<T> values;
+
+		private Snapshot(long version, List<T> values) {
+			this.version = version;
+			this.values = values;
+		}
+	}
+
+	private final ConcurrentHashMap<String, T> logins = new ConcurrentHashMap<>();
+	private final AtomicLong version = new AtomicLong();
+	private volatile Snapshot<T> snapshot = new Snapshot<>(0, List.of());
+
+	/**
+	 * @return false if the login is already registered
+	 */
+	boolean register(String login, T value) {
+		if (logins.putIfAbsent(login, value) != null)
+			return false;
+		version.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @return the value registered for the login, null if there is none
+	 */
+	T lookup(String login) {
+		return logins.get(login);
+	}
+
+	/**
+	 * Unregisters the login only if it is registered with this value.
+	 *
+	 * @return true if the login was unregistered
+	 */
+	boolean unregister(String login, T value) {
+		if (!logins.remove(login, value))
+			return false;
+		version.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @return an immutable list of the registered values, which contains at least
+	 *         every value registered before the call and still registered
+	 */
+	List<T> snapshot() {
+		var current = snapshot;
+		var currentVersion = version.get();
+		if (current.version == currentVersion)
+			return current.values;
+		current = new Snapshot<>(currentVersion, List.copyOf(logins.values()));
+		snapshot = current;
+		return current.values;
+	}
+
+	int size() {
+		return logins.size();
+	}
+}
@@ -0,0 +1,119 @@
+package server;
+
+/**
+ * Map from primitive longs to non-null values, without boxing the keys.
+ *
+ * Keys and values are kept in two parallel arrays with open addressing and linear
+ * probing, a slot being free when its value is null. Removals shift the following
+ * entries of the probe sequence back, so no tombstone is ever left behind and the
+ * arrays shrink back once the map empties.
+ *
+ * Not thread-safe.
+ *
+ * @param <V> the values
+ */
+class LongMap<V> {
+
+	static private final int MIN_CAPACITY = 16;
+
+	private long[] keys = new long[MIN_CAPACITY];
+	private Object[] values = new Object[MIN_CAPACITY];
+	private int size;
+
+	/**
+	 * @return the value of the key, null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	V get(long key) {
+		var mask = keys.length - 1;
+		for (var i = slot(key, mask); values[i] != null; i = (i + 1) & mask)
+			if (keys[i] == key)
+				return (V) values[i];
+		return null;
+	}
+
+	boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @return the previous value of the key, null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	V put(long key, V value) {
+		if (value == null)
+			throw new NullPointerException("null value");
+		var mask = keys.length - 1;
+		var i = slot(key, mask);
+		for (; values[i] != null; i = (i + 1) & mask)
+			if (keys[i] == key) {
+				var previous = (V) values[i];
+				values[i] = value;
+				return previous;
+			}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > keys.length / 2) // probe sequences stay short
+			resize(keys.length * 2);
+		return null;
+	}
+
+	/**
+	 * @return the removed value, null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(long key) {
+		var mask = keys.length - 1;
+		var i = slot(key, mask);
+		for (; values[i] != null; i = (i + 1) & mask)
+			if (keys[i] == key)
+				break;
+		var removed = (V) values[i];
+		if (removed == null)
+			return null;
+		// moves back the entries which could not use the freed slot
+		for (var j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			var home = slot(keys[j], mask);
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		values[i] = null;
+		if (--size < keys.length / 8 && keys.length > MIN_CAPACITY)
+			resize(keys.length / 2);
+		return removed;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void resize(int capacity) {
+		var oldKeys = keys;
+		var oldValues = values;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		var mask = capacity - 1;
+		for (var j = 0; j < oldKeys.length; j++) {
+			if (oldValues[j] == null)
+				continue;
+			var i = slot(oldKeys[j], mask);
+			while (values[i] != null)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	/**
+	 * Spreads the bits of the key, as the keys may have few distinct low bits
+	 */
+	static private int slot(long key, int mask) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key & mask;
+	}
+}
@@ -0,0 +1,133 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Registry of the metrics of a server.
+ *
+ * Counters and gauges are LongAdders updated by the reactors without contention,
+ * or suppliers read when the metrics are rendered. The metrics are rendered in the
+ * Prometheus text format and may be served on a local HTTP endpoint.
+ *
+ * Metrics are registered before the server is launched.
+ */
+public class Metrics {
+
+	private static class Metric {
+		private final String name;
+		private final String labels;
+		private final String help;
+		private final String type;
+		private final LongSupplier value;
+
+		private Metric(String name, String labels, String help, String type, LongSupplier value) {
+			this.name = name;
+			this.labels = labels;
+			this.help = help;
+			this.type = type;
+			this.value = value;
+		}
+	}
+
+	private final ArrayList<Metric> metrics = new ArrayList<>();
+
+	/**
+	 * @return a new counter, which only increases
+	 */
+	public LongAdder counter(String name, String help) {
+		var adder = new LongAdder();
+		register(name, "", help, "counter", adder::sum);
+		return adder;
+	}
+
+	/**
+	 * Registers a counter whose value is computed when the metrics are rendered.
+	 *
+	 * @param value called from the thread rendering the metrics, which only increases
+	 */
+	public void counter(String name, String help, LongSupplier value) {
+		register(name, "", help, "counter", value);
+	}
+
+	/**
+	 * @return a family of n counters, the i-th one having the label value i
+	 */
+	public LongAdder[] counters(String name, String label, int n, String help) {
+		var adders = new LongAdder[n];
+		for (var i = 0; i < n; i++) {
+			adders[i] = new LongAdder();
+			register(name, "{" + label + "=\"" + i + "\"}", help, "counter", adders[i]::sum);
+		}
+		return adders;
+	}
+
+	/**
+	 * @return a new gauge, which increases and decreases
+	 */
+	public LongAdder gauge(String name, String help) {
+		var adder = new LongAdder();
+		register(name, "", help, "gauge", adder::sum);
+		return adder;
+	}
+
+	/**
+	 * Registers a gauge whose value is computed when the metrics are rendered.
+	 *
+	 * @param value called from the thread rendering the metrics
+	 */
+	public void gauge(String name, String help, LongSupplier value) {
+		register(name, "", help, "gauge", value);
+	}
+
+	private synchronized void register(String name, String labels, String help, String type, LongSupplier value) {
+		metrics.add(new Metric(name, labels, help, type, value));
+	}
+
+	/**
+	 * @return the current values of the metrics in the Prometheus text format
+	 */
+	public synchronized String render() {
+		var builder = new StringBuilder();
+		String previous = null;
+		for (var metric : metrics) {
+			if (!metric.name.equals(previous)) {
+				builder.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+				builder.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+				previous = metric.name;
+			}
+			builder.append(metric.name).append(metric.labels).append(' ').append(metric.value.getAsLong()).append('\n');
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Serves the metrics on http://localhost:port/metrics, from a thread of the HTTP server.
+	 *
+	 * @param port
+	 * @return the started HTTP server, to be stopped by the caller
+	 * @throws IOException
+	 */
+	public HttpServer serve(int port) throws IOException {
+		var httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/metrics", exchange -> {
+			try {
+				var body = render().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+			} finally {
+				exchange.close();
+			}
+		});
+		httpServer.start();
+		return httpServer;
+	}
+}
@@ -0,0 +1,141 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+/**
+ * Private connections waiting for their two clients, shared by all the reactors.
+ *
+ * A private connection is registered under a random connect_id when its target
+ * accepts it, and leaves the registry as soon as both clients are connected or its
+ * handshake deadline expires, so the registry only holds the handshakes in progress.
+ * A login may only take part in a limited number of them at a time.
+ *
+ * The registry is only touched when a handshake starts or ends, a single lock guards it.
+ */
+class PendingTunnels {
+
+	private static class Pending {
+		private final PrivateConnection connection;
+		private final String requester;
+		private final String target;
+
+		private Pending(PrivateConnection connection, String requester, String target) {
+			this.connection = connection;
+			this.requester = requester;
+			this.target = target;
+		}
+	}
+
+	private final LongMap<Pending> pending = new LongMap<>();
+	private final HashMap<String, Integer> perLogin = new HashMap<>();
+	private final SecureRandom random = new SecureRandom();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder refused = new LongAdder();
+	private int maxPerLogin;
+	private long handshakeTimeoutNanos;
+
+	/**
+	 * @param maxPerLogin number of handshakes in progress a login may take part in
+	 * @param handshakeTimeoutNanos how long the two clients have to connect, 0 for ever
+	 */
+	PendingTunnels(int maxPerLogin, long handshakeTimeoutNanos) {
+		setLimits(maxPerLogin, handshakeTimeoutNanos);
+	}
+
+	/**
+	 * Must be called before the first handshake.
+	 *
+	 * @param maxPerLogin
+	 * @param handshakeTimeoutNanos
+	 */
+	void setLimits(int maxPerLogin, long handshakeTimeoutNanos) {
+		if (maxPerLogin < 1 || handshakeTimeoutNanos < 0)
+			throw new IllegalArgumentException();
+		this.maxPerLogin = maxPerLogin;
+		this.handshakeTimeoutNanos = handshakeTimeoutNanos;
+	}
+
+	long handshakeTimeoutNanos() {
+		return handshakeTimeoutNanos;
+	}
+
+	/**
+	 * Registers the private connection of a new handshake.
+	 *
+	 * @param requester
+	 * @param target
+	 * @param factory creates the private connection from its connect_id
+	 * @return the private connection, null if one of the logins already takes part in too many handshakes
+	 */
+	synchronized PrivateConnection open(String requester, String target, LongFunction<PrivateConnection> factory) {
+		if (count(requester) >= maxPerLogin || count(target) >= maxPerLogin) {
+			refused.increment();
+			return null;
+		}
+		long id;
+		do
+			id = random.nextLong();
+		while (pending.containsKey(id));
+		var connection = factory.apply(id);
+		pending.put(id, new Pending(connection, requester, target));
+		perLogin.merge(requester, 1, Integer::sum);
+		perLogin.merge(target, 1, Integer::sum);
+		return connection;
+	}
+
+	/**
+	 * @return the private connection waiting for its clients with this connect_id, null if there is none
+	 */
+	synchronized PrivateConnection lookup(long id) {
+		var entry = pending.get(id);
+		return entry == null ? null : entry.connection;
+	}
+
+	/**
+	 * Removes a private connection once both its clients are connected or its deadline expired.
+	 *
+	 * @param id
+	 * @param expired
+	 */
+	synchronized void close(long id, boolean expired) {
+		var entry = pending.remove(id);
+		if (entry == null)
+			return;
+		release(entry.requester);
+		release(entry.target);
+		if (expired)
+			this.expired.increment();
+	}
+
+	private int count(String login) {
+		return perLogin.getOrDefault(login, 0);
+	}
+
+	private void release(String login) {
+		perLogin.computeIfPresent(login, (__, count) -> count == 1 ? null : count - 1);
+	}
+
+	/**
+	 * @return the number of handshakes in progress
+	 */
+	synchronized int size() {
+		return pending.size();
+	}
+
+	/**
+	 * @return the number of handshakes whose deadline expired
+	 */
+	long expiredCount() {
+		return expired.sum();
+	}
+
+	/**
+	 * @return the number of handshakes refused because a login took part in too many
+	 */
+	long refusedCount() {
+		return refused.sum();
+	}
+}
@@ -4,95 +4,260 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.LongAdder;
 
+import buffers.BufferPool;
 import frames.FrameEstablished;
+import trace.Tracer;
 
-public class PrivateConnection implements Connection {
+/**
+ * Tunnel between the two clients of a private connection.
+ *
+ * Each direction has its own direct buffer and each socket its own key, so a
+ * socket is only read when it is readable and written when it is writable.
+ * Bytes read on one side are written to the other side right away, the selector
+ * is only asked for OP_WRITE when the other socket could not take them all.
+ *
+ * When a client shuts down its output, the other client gets an end of stream
+ * once the bytes in transit are written, and may still send bytes back.
+ * The tunnel is closed when both directions are finished.
+ *
+ * Both clients must connect before the handshake deadline, which is a timer of the
+ * reactor: a client waiting for the other one is not even read. The private connection
+ * leaves the registry of the handshakes in progress as soon as both clients are
+ * connected or the deadline expires.
+ */
+public class PrivateConnection {
 
-	static private int BUFFER_SIZE = 1_024;
+	static private int RELAY_BUFFER_SIZE = 64 * 1_024;
+	static private Tracer tracer = Tracer.forComponent("tunnel");
 
-	private SelectionKey keyA;
-	private SocketChannel scA;
-	private SelectionKey keyB;
-	private SocketChannel scB;
-	final private ByteBuffer bbA = ByteBuffer.allocate(BUFFER_SIZE);
-	final private ByteBuffer bbB = ByteBuffer.allocate(BUFFER_SIZE);
+	/**
+	 * Bytes flowing from one socket to the other, the buffer is in write-mode
+	 */
+	private static class Direction {
+		private final SocketChannel from;
+		private final SocketChannel to;
+		private final ByteBuffer bb;
+		private final LongAdder relayedBytes;
+		private boolean endOfStream;
+		private boolean finished;
+
+		private Direction(SocketChannel from, SocketChannel to, ByteBuffer bb, LongAdder relayedBytes) {
+			this.from = from;
+			this.to = to;
+			this.bb = bb;
+			this.relayedBytes = relayedBytes;
+		}
+
+		private boolean canRead() {
+			return !endOfStream && bb.hasRemaining();
+		}
+
+		private boolean hasPending() {
+			return bb.position() != 0;
+		}
+
+		private void read() throws IOException {
+			if (from.read(bb) == -1)
+				endOfStream = true;
+		}
+
+		private void write() throws IOException {
+			if (hasPending()) {
+				relayedBytes.add(to.write(bb.flip()));
+				bb.compact();
+			}
+			if (endOfStream && !hasPending() && !finished) {
+				to.shutdownOutput();
+				finished = true;
+			}
+		}
+	}
+
+	/**
+	 * Attachment of the key of one client
+	 */
+	private class Side implements Connection {
+		private final SelectionKey key;
+		private Direction in; // from this client
+		private Direction out; // to this client
+
+		private Side(SelectionKey key) {
+			this.key = key;
+		}
+
+		@Override
+		public void doRead() throws IOException {
+			in.read();
+			in.write();
+			PrivateConnection.this.updateInterestOps();
+		}
+
+		@Override
+		public void doWrite() throws IOException {
+			out.write();
+			PrivateConnection.this.updateInterestOps();
+		}
+
+		@Override
+		public void silentlyClose() {
+			PrivateConnection.this.silentlyClose();
+		}
+
+		private void updateKey() {
+			var interestOps = 0;
+			if (in.canRead())
+				interestOps = SelectionKey.OP_READ;
+			if (out.hasPending())
+				interestOps |= SelectionKey.OP_WRITE;
+			key.interestOps(interestOps);
+		}
+	}
+
+	final private BufferPool buffers;
+	final private LongAdder tunnels;
+	final private LongAdder relayedBytes;
+	final private PendingTunnels registry;
+	final private long id;
+	final private Reactor reactor;
+	final private TimerWheel.Timer handshakeTimer = new TimerWheel.Timer(this::expire);
+	private boolean handshakeOver = false;
+	private Side sideA;
+	private ByteBuffer pendingA;
+	private Side sideB;
 	private boolean closed = false;
-	
-	public void connect(SelectionKey key, SocketChannel sc) {
-		if (keyA == null) {
-			keyA = key;
-			scA = sc;
-		}
-		else if (keyB == null) {
-			keyB = key;
-			scB = sc;
-//			System.out.println("[debug] creation of FrameEstablished");
+
+	/**
+	 * Must be called from the thread of the reactor, which starts the handshake deadline.
+	 *
+	 * @param registry the handshakes in progress, this private connection is registered under id
+	 * @param id the connect_id
+	 * @param reactor the reactor handling both clients
+	 * @param buffers the pool of the relay buffers, acquired once both sides are connected
+	 * @param tunnels gauge of the established private connections
+	 * @param relayedBytes counter of the bytes written by the tunnel
+	 */
+	public PrivateConnection(PendingTunnels registry, long id, Reactor reactor, BufferPool buffers, LongAdder tunnels,
+			LongAdder relayedBytes) {
+		this.registry = registry;
+		this.id = id;
+		this.reactor = reactor;
+		this.buffers = buffers;
+		this.tunnels = tunnels;
+		this.relayedBytes = relayedBytes;
+		if (registry.handshakeTimeoutNanos() > 0)
+			reactor.timers().schedule(handshakeTimer, System.nanoTime() + registry.handshakeTimeoutNanos());
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Attach a client connection to this private connection.
+	 *
+	 * Both connections are handled by the reactor of the private connection,
+	 * a connection owned by another reactor is moved to it.
+	 *
+	 * @param reactor the reactor currently owning the key
+	 * @param key
+	 * @param pending bytes already received on the connection after the LOGIN_PRIVATE, in read-mode
+	 */
+	public void connect(Reactor reactor, SelectionKey key, ByteBuffer pending) {
+		if (this.reactor == reactor)
+			connect(key, pending);
+		else
+			this.reactor.adopt(key, newKey -> connect(newKey, pending));
+	}
+
+	private void connect(SelectionKey key, ByteBuffer pending) {
+		if (closed) { // expired while the key was moved to this reactor
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				// ignore exception
+			}
+			return;
+		}
+		if (sideA == null) {
+			sideA = new Side(key);
+			pendingA = pending;
+			key.interestOps(0);
+			key.attach(sideA);
+		}
+		else if (sideB == null) {
+			sideB = new Side(key);
+			key.attach(sideB);
+			var scA = (SocketChannel) sideA.key.channel();
+			var scB = (SocketChannel) key.channel();
 			var establishedBB = new FrameEstablished().asBuffer();
-			bbA.put(establishedBB.flip());
-			bbB.put(establishedBB.flip());
-			updateInterestOps();
+			sideA.in = sideB.out = new Direction(scA, scB, buffers.acquire(RELAY_BUFFER_SIZE, this), relayedBytes);
+			sideB.in = sideA.out = new Direction(scB, scA, buffers.acquire(RELAY_BUFFER_SIZE, this), relayedBytes);
+			sideA.in.bb.put(establishedBB.flip()).put(pendingA);
+			sideB.in.bb.put(establishedBB.flip()).put(pending);
+			pendingA = null;
+			endHandshake(false);
+			tunnels.increment();
+			sideA.updateKey();
+			sideB.updateKey();
+		}
+		else {
+			tracer.event(Tracer.Level.WARN, "third-client-refused");
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				// ignore exception
+			}
 		}
-		else
-			System.out.println("A third person tries to enter the private connection.");
-		key.attach(this);
 	}
 
 	private void updateInterestOps() {
-		var interestOps = 0;
-		if (!closed && bbA.hasRemaining())
-			interestOps = SelectionKey.OP_READ;
-		if (bbB.position() != 0)
-			interestOps |= SelectionKey.OP_WRITE;
-		if (interestOps == 0)
-			silentlyClose();
-		else
-			keyA.interestOps(interestOps);
-		interestOps = 0;
-		if (!closed && bbB.hasRemaining())
-			interestOps = SelectionKey.OP_READ;
-		if (bbA.position() != 0)
-			interestOps |= SelectionKey.OP_WRITE;
-		if (interestOps == 0)
+		if (closed)
+			return;
+		if (sideA.in.finished && sideB.in.finished) {
 			silentlyClose();
-		else
-			keyB.interestOps(interestOps);
-//		System.out.println("[debug] keyA interestOps = " + keyA.interestOps());
-//		System.out.println("[debug] keyB interestOps = " + keyB.interestOps());
+			return;
+		}
+		sideA.updateKey();
+		sideB.updateKey();
 	}
 
-	@Override
-	public void doRead() throws IOException {
-		if (scA.read(bbA) == -1)
-			closed = true;
-		if (scB.read(bbB) == -1)
-			closed = true;
-//		System.out.println(" [debug] doRead " + StandardCharsets.UTF_8.decode(bbA.flip()));
-//		System.out.println(" [debug] doRead " + StandardCharsets.UTF_8.decode(bbB.flip()));
-		updateInterestOps();
-
+	private void expire() {
+		tracer.event(Tracer.Level.INFO, "handshake-expired");
+		endHandshake(true);
+		silentlyClose();
 	}
 
-	@Override
-	public void doWrite() throws IOException {
-//		System.out.println(" [debug] doWrite position=" + bbB.position() + " --> " + StandardCharsets.UTF_8.decode(bbB.flip()));
-		scA.write(bbB.flip());
-		bbB.compact();
-//		System.out.println(" [debug] doWrite position=" + bbA.position() + " --> " + StandardCharsets.UTF_8.decode(bbA.flip()));
-		scB.write(bbA.flip());
-		bbA.compact();
-		updateInterestOps();
+	/**
+	 * Removes the private connection from the registry, its connect_id is not valid anymore
+	 */
+	private void endHandshake(boolean expired) {
+		if (handshakeOver)
+			return;
+		handshakeOver = true;
+		reactor.timers().cancel(handshakeTimer);
+		registry.close(id, expired);
 	}
 
 	public void silentlyClose() {
+		if (closed)
+			return;
+		closed = true;
+		endHandshake(false);
 		try {
-			if (scA != null)
-				scA.close();
-			if (scB != null)
-				scB.close();
+			if (sideA != null)
+				sideA.key.channel().close();
+			if (sideB != null)
+				sideB.key.channel().close();
 		} catch (IOException e) {
 			// ignore exception
 		}
+		if (sideB != null) {
+			tunnels.decrement();
+			buffers.release(sideA.in.bb);
+			buffers.release(sideB.in.bb);
+		}
 	}
 
 }
@@ -0,0 +1,272 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import frames.FrameBatch;
+import frames.FrameCompressed;
+import frames.FrameMessage;
+import trace.Tracer;
+
+/**
+ * A selector thread owning a subset of the connections of the server.
+ *
+ * Every connection attached to a key of this reactor must only be touched
+ * from the reactor thread. Other threads hand work over with {@link #execute(Runnable)}.
+ *
+ * The public messages of the clients of the reactor are published in batches: the
+ * messages received during the batching window of the server are fanned out as a
+ * single frame, or as soon as the batch is full.
+ *
+ * The connections of the reactor which negotiated the compression share its codec:
+ * each COMPRESSED frame is compressed on its own, so no state is kept per connection.
+ *
+ * The timers of the connections, such as their idle timeouts, run on the reactor
+ * thread between two selections, from a timer wheel.
+ */
+class Reactor implements Runnable {
+
+	static private Logger logger = Logger.getLogger(Reactor.class.getName());
+	static private Tracer tracer = Tracer.forComponent("reactor");
+
+	private final ServerChat server;
+	private final Selector selector;
+	private final Thread thread;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private final FrameBatch.Builder batch = new FrameBatch.Builder();
+	private final ArrayList<FrameMessage> batched = new ArrayList<>();
+	private long batchDeadline;
+	private final FrameCompressed.Codec codec = new FrameCompressed.Codec();
+	private final TimerWheel timers = new TimerWheel();
+
+	Reactor(ServerChat server, String name) throws IOException {
+		this.server = server;
+		selector = Selector.open();
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	void shutdown() {
+		thread.interrupt();
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs the task on the reactor thread.
+	 *
+	 * The task is run immediately when called from the reactor thread, otherwise
+	 * it is queued and the selector is woken up if no wakeup is already pending.
+	 *
+	 * @param task
+	 */
+	void execute(Runnable task) {
+		if (Thread.currentThread() == thread) {
+			task.run();
+			return;
+		}
+		tasks.add(task);
+		if (!wakeupPending.getAndSet(true))
+			selector.wakeup();
+	}
+
+	/**
+	 * Registers a freshly accepted client on this reactor.
+	 *
+	 * @param sc a non-blocking socket channel
+	 */
+	void register(SocketChannel sc) {
+		execute(() -> {
+			try {
+				var key = sc.register(selector, SelectionKey.OP_READ);
+				key.attach(server.newContext(this, key));
+			} catch (ClosedChannelException e) {
+				// the client left before being registered
+			}
+		});
+	}
+
+	/**
+	 * Moves the channel of a key owned by another reactor to this reactor.
+	 *
+	 * The key is cancelled immediately and the channel is registered on this
+	 * reactor with no interest, then onRegistered is called on the reactor thread.
+	 *
+	 * @param key
+	 * @param onRegistered
+	 */
+	void adopt(SelectionKey key, Consumer<SelectionKey> onRegistered) {
+		key.cancel();
+		execute(() -> {
+			try {
+				onRegistered.accept(key.channel().register(selector, 0));
+			} catch (ClosedChannelException e) {
+				// the client left during the transfer
+			}
+		});
+	}
+
+	/**
+	 * @return the codec of the reactor, which must only be used from the reactor thread
+	 */
+	FrameCompressed.Codec codec() {
+		return codec;
+	}
+
+	/**
+	 * @return the timers of the reactor, which must only be used from the reactor thread
+	 */
+	TimerWheel timers() {
+		return timers;
+	}
+
+	/**
+	 * Adds a public message of a client of this reactor to the current batch.
+	 *
+	 * Must be called from the reactor thread.
+	 *
+	 * @param msg
+	 */
+	void publish(FrameMessage msg) {
+		if (!batch.add(msg)) {
+			flushBatch();
+			batch.add(msg);
+		}
+		if (batched.isEmpty())
+			batchDeadline = System.nanoTime() + server.batchWindowNanos();
+		batched.add(msg);
+	}
+
+	private void flushBatch() {
+		if (batched.isEmpty())
+			return;
+		server.publish(batched, batch);
+		batched.clear();
+		batch.clear();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.interrupted()) {
+				var now = System.nanoTime();
+				if (!batched.isEmpty() && now - batchDeadline >= 0)
+					flushBatch();
+				timers.advance(now);
+				if (tracer.isEnabled(Tracer.Level.TRACE))
+					tracer.event(Tracer.Level.TRACE, "select", "keys", keysToString());
+				var timeout = 0L; // no timeout
+				if (!batched.isEmpty()) // wakes up at the end of the batching window
+					timeout = TimeUnit.NANOSECONDS.toMillis(batchDeadline - now) + 1;
+				if (!timers.isEmpty()) // and on the next tick of the timers
+					timeout = timeout == 0 ? timers.millisToNextTick(now) : Math.min(timeout, timers.millisToNextTick(now));
+				int selected;
+				try {
+					if (timeout == 0)
+						selected = selector.select(this::treatKey);
+					else
+						selected = selector.select(this::treatKey, timeout);
+				} catch (UncheckedIOException tunneled) {
+					throw tunneled.getCause();
+				}
+				if (tracer.isEnabled(Tracer.Level.TRACE))
+					tracer.event(Tracer.Level.TRACE, "selected", "keys", selected);
+				runTasks();
+			}
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Reactor stopped due to IOException", e);
+		}
+	}
+
+	private void runTasks() {
+		wakeupPending.set(false);
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+			task.run();
+	}
+
+	private void treatKey(SelectionKey key) {
+		if (tracer.isEnabled(Tracer.Level.TRACE))
+			tracer.event(Tracer.Level.TRACE, "ready", "channel", channelToString(key), "ops", possibleActionsToString(key));
+		try {
+			if (key.isValid() && key.isWritable()) {
+				((Connection) key.attachment()).doWrite();
+			}
+			if (key.isValid() && key.isReadable()) {
+				((Connection) key.attachment()).doRead();
+			}
+		} catch (IOException e) {
+			logger.log(Level.INFO,"Connection closed with client due to IOException",e);
+			((Connection) key.attachment()).silentlyClose();
+		}
+	}
+
+	/***
+	 *  Theses methods are here to help understanding the behavior of the selector,
+	 *  they are only called when the trace level is trace
+	 ***/
+
+	private String interestOpsToString(SelectionKey key){
+		if (!key.isValid()) {
+			return "CANCELLED";
+		}
+		int interestOps = key.interestOps();
+		ArrayList<String> list = new ArrayList<>();
+		if ((interestOps&SelectionKey.OP_ACCEPT)!=0) list.add("OP_ACCEPT");
+		if ((interestOps&SelectionKey.OP_READ)!=0) list.add("OP_READ");
+		if ((interestOps&SelectionKey.OP_WRITE)!=0) list.add("OP_WRITE");
+		return String.join("|",list);
+	}
+
+	private String keysToString() {
+		var list = new ArrayList<String>();
+		for (var key : selector.keys())
+			list.add(channelToString(key) + ":" + interestOpsToString(key));
+		return "[" + String.join(", ", list) + "]";
+	}
+
+	private String channelToString(SelectionKey key) {
+		SelectableChannel channel = key.channel();
+		if (channel instanceof ServerSocketChannel)
+			return "ServerSocketChannel";
+		return remoteAddressToString((SocketChannel) channel);
+	}
+
+	private String remoteAddressToString(SocketChannel sc) {
+		try {
+			return String.valueOf(sc.getRemoteAddress());
+		} catch (IOException e){
+			return "???";
+
+		}
+	}
+
+	private String possibleActionsToString(SelectionKey key) {
+		if (!key.isValid()) {
+			return "CANCELLED";
+		}
+		ArrayList<String> list = new ArrayList<>();
+		if (key.isAcceptable()) list.add("ACCEPT");
+		if (key.isReadable()) list.add("READ");
+		if (key.isWritable()) list.add("WRITE");
+		return String.join(" and ",list);
+	}
+}
@@ -0,0 +1,64 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Subscribers of the chat rooms, shared by all the reactors.
+ *
+ * Each room maps to an immutable list of its subscribers, replaced atomically
+ * when a subscriber joins or leaves, so a room message iterates over its
+ * subscribers without any lock. A room exists as long as it has subscribers.
+ *
+ * @param <T> what subscribes to a room
+ */
+class RoomRegistry<T> {
+
+	private final ConcurrentHashMap<String, List<T>> rooms = new ConcurrentHashMap<>();
+
+	/**
+	 * Adds a subscriber to a room, creating the room if needed.
+	 */
+	void join(String room, T subscriber) {
+		rooms.compute(room, (__, subscribers) -> {
+			if (subscribers == null)
+				return List.of(subscriber);
+			if (subscribers.contains(subscriber))
+				return subscribers;
+			var newSubscribers = new ArrayList<T>(subscribers.size() + 1);
+			newSubscribers.addAll(subscribers);
+			newSubscribers.add(subscriber);
+			return List.copyOf(newSubscribers);
+		});
+	}
+
+	/**
+	 * Removes a subscriber from a room, and the room if it has no subscriber anymore.
+	 */
+	void leave(String room, T subscriber) {
+		rooms.computeIfPresent(room, (__, subscribers) -> {
+			if (!subscribers.contains(subscriber))
+				return subscribers;
+			if (subscribers.size() == 1)
+				return null;
+			var newSubscribers = new ArrayList<T>(subscribers);
+			newSubscribers.remove(subscriber);
+			return List.copyOf(newSubscribers);
+		});
+	}
+
+	/**
+	 * @return an immutable list of the subscribers of the room, empty if there is no such room
+	 */
+	List<T> subscribers(String room) {
+		return rooms.getOrDefault(room, List.of());
+	}
+
+	/**
+	 * @return the number of rooms with at least one subscriber
+	 */
+	int size() {
+		return rooms.size();
+	}
+}
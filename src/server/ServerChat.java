@@ -1,27 +1,38 @@
 package server;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.Random;
-import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
+import buffers.BufferPool;
+import cluster.Cluster;
+import history.HistoryLog;
+import mailbox.Mailboxes;
 import frames.Frame;
+import frames.FrameBatch;
+import frames.FrameCluster;
+import frames.FrameCompressed;
+import frames.FrameCompressionAccepted;
+import frames.FrameCompressionRequest;
+import frames.FrameHistoryMessage;
+import frames.FrameHistoryRequest;
 import frames.FrameIdPrivate;
+import frames.FrameJoinRoom;
 import frames.FrameKoPrivate;
+import frames.FrameLeaveRoom;
 import frames.FrameLogin;
 import frames.FrameLoginAccepted;
 import frames.FrameLoginPrivate;
@@ -29,9 +40,13 @@ import frames.FrameLoginRefused;
 import frames.FrameMessage;
 import frames.FrameMessagePrivate;
 import frames.FrameOkPrivate;
+import frames.FramePing;
+import frames.FramePong;
 import frames.FrameRequestPrivate;
+import frames.FrameRoomMessage;
 import readers.FrameReader;
 import readers.Reader;
+import com.sun.net.httpserver.HttpServer;
 import visitors.PublicConnectionVisitor;
 
 
@@ -41,34 +56,75 @@ public class ServerChat {
 
 		final private SelectionKey key;
 		final private SocketChannel sc;
-		final private ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE);
-		final private ByteBuffer bbout = ByteBuffer.allocate(BUFFER_SIZE);
-		final private Queue<Frame> queue = new LinkedList<>();
+		final private ByteBuffer bbin;
+		final private FrameRing queue = new FrameRing();
 		final private ServerChat server;
+		final private Reactor reactor;
 		private boolean closed = false;
-		private final Reader reader = new FrameReader(bbin);
+		private boolean detached = false;
+		private boolean released = false;
+		private final Reader reader;
 		private String login;
-		private ArrayList<String> connectionAsked=new ArrayList<>();
+		private boolean claiming = false;
+		private boolean compressing = false;
+		private final TimerWheel.Timer idleTimer = new TimerWheel.Timer(this::checkIdle);
+		private long lastRead; // System.nanoTime() of the last bytes read
+		private boolean pinged; // since lastRead
+		private final HashSet<String> connectionAsked = new HashSet<>(); // requesters waiting for an answer
+		private final HashSet<String> rooms = new HashSet<>();
+		private int reportedFrames; // part of the queue counted in the metrics of the server
+		private long reportedBytes;
 
-		private Context(ServerChat server, SelectionKey key){
+		private Context(ServerChat server, Reactor reactor, SelectionKey key){
 			this.key = key;
 			this.sc = (SocketChannel) key.channel();
 			this.server = server;
+			this.reactor = reactor;
+			this.bbin = server.buffers.acquire(BUFFER_SIZE, this);
+			this.reader = new FrameReader(bbin);
+			server.connectionsOpened.increment();
+			if (server.idleTimeoutNanos > 0) {
+				lastRead = System.nanoTime();
+				reactor.timers().schedule(idleTimer, lastRead + server.idleTimeoutNanos / 2);
+			}
+		}
+
+		/**
+		 * Runs once the connection may have been silent for half the idle timeout:
+		 * the client is sent a PING, and the connection is closed if the client is
+		 * still silent at the end of the idle timeout.
+		 */
+		private void checkIdle() {
+			var silence = System.nanoTime() - lastRead;
+			if (silence >= server.idleTimeoutNanos) {
+				server.idleClosed.increment();
+				silentlyClose();
+				return;
+			}
+			var halfTimeout = server.idleTimeoutNanos / 2;
+			if (silence >= halfTimeout && !pinged) {
+				pinged = true;
+				queueMessage(new FramePing(lastRead));
+			}
+			reactor.timers().schedule(idleTimer, lastRead + (pinged ? server.idleTimeoutNanos : halfTimeout));
 		}
 
 		/**
 		 * Process the content of bbin
 		 *
 		 * The convention is that bbin is in write-mode before the call
-		 * to process and after the call
+		 * to process and after the call.
+		 * Stops as soon as a frame closes the connection, bbin being back in the pool.
 		 *
 		 */
 		private void processIn() {
-			while (true)
+			while (!detached && !released)
 				switch (reader.process()) {
 					case DONE:
 //					System.out.println(bbin.toString());
-						((Frame) reader.get()).accept(this);
+						var frame = (Frame) reader.get();
+						server.framesIn[frame.getOpcode()].increment();
+						frame.accept(this);
 						reader.reset();
 						break;
 					case REFILL:
@@ -80,48 +136,150 @@ public class ServerChat {
 		}
 
 		/**
-		 * Add a message to the message queue, tries to fill bbOut and updateInterestOps
+		 * Add a message to the message queue and updateInterestOps
 		 *
 		 * @param msg
 		 */
 		private void queueMessage(Frame msg) {
 			//			System.out.println("queueMessage");
-			queue.add(msg);
-			processOut();
-			updateInterestOps();
+			queueMessage(msg.asBuffer().flip());
 		}
 
 		/**
-		 * Try to fill bbout from the message queue
+		 * Add an already encoded frame to the message queue and updateInterestOps
 		 *
+		 * The buffer is in read-mode and is never modified except for its position,
+		 * so it may be a view shared with other connections.
+		 *
+		 * @param encodedMsg
 		 */
-		private void processOut() {
-			//			System.out.println("OK");
-			while (!queue.isEmpty()) {
-				var frameBuff = queue.element().asBuffer();
-				if (bbout.remaining() < frameBuff.capacity())
-					return;
-				bbout.put(frameBuff.flip());
-				queue.remove();
+		private void queueMessage(ByteBuffer encodedMsg) {
+			queueMessage(encodedMsg, false);
+		}
+
+		/**
+		 * Same as queueMessage(ByteBuffer) but when the queue is full the
+		 * slow consumer policy of the server decides what happens
+		 *
+		 * @param encodedMsg
+		 * @param isPublic true for public messages, which policies may drop
+		 */
+		private void queueMessage(ByteBuffer encodedMsg, boolean isPublic) {
+			queueMessages(encodedMsg, 1, isPublic);
+		}
+
+		/**
+		 * Add frames of the same type encoded one after the other in a single buffer,
+		 * which the queue writes as one frame
+		 *
+		 * @param encodedMsgs
+		 * @param nbFrames number of frames in the buffer
+		 * @param isPublic true for public messages, which policies may drop
+		 */
+		private void queueMessages(ByteBuffer encodedMsgs, int nbFrames, boolean isPublic) {
+			if (!key.isValid())
+				return;
+			queueMessages(encodedMsgs, compressing
+					? reactor.codec().compress(encodedMsgs, FrameCompressed.MAX_SERVER_DATA_BYTES)
+					: null, nbFrames, isPublic);
+		}
+
+		/**
+		 * Add a frame fanned out to many clients, compressed at most once for all of them
+		 *
+		 * @param broadcast
+		 */
+		private void queueMessage(Broadcast broadcast) {
+			if (!key.isValid())
+				return;
+			queueMessages(broadcast.encoded(), compressing ? broadcast.compressed(reactor.codec()) : null, 1, true);
+		}
+
+		/**
+		 * @param encodedMsgs
+		 * @param compressedMsgs the COMPRESSED frame queued instead of encodedMsgs, null to queue encodedMsgs
+		 * @param nbFrames number of frames in encodedMsgs
+		 * @param isPublic
+		 */
+		private void queueMessages(ByteBuffer encodedMsgs, ByteBuffer compressedMsgs, int nbFrames, boolean isPublic) {
+			var opcode = encodedMsgs.get(encodedMsgs.position());
+			var saved = compressedMsgs == null ? 0 : encodedMsgs.remaining() - compressedMsgs.remaining();
+			var queued = compressedMsgs == null ? encodedMsgs : compressedMsgs;
+			if (!server.slowConsumerPolicy.offer(queue, queued, isPublic, server.maxQueuedFrames, server.maxQueuedBytes)) {
+				silentlyClose();
+				return;
 			}
+			server.framesOut[opcode].add(nbFrames);
+			if (compressedMsgs != null) {
+				server.compressedFrames.increment();
+				server.compressionSavedBytes.add(saved);
+			}
+			reportQueue();
+			updateInterestOps();
+		}
+
+		/**
+		 * Reports the changes of the depth of the queue to the metrics of the server
+		 */
+		private void reportQueue() {
+			server.queuedFrames.add(queue.size() - reportedFrames);
+			server.queuedBytes.add(queue.remainingBytes() - reportedBytes);
+			reportedFrames = queue.size();
+			reportedBytes = queue.remainingBytes();
+			server.maxQueueDepth.accumulate(reportedFrames);
+		}
+
+		/**
+		 * Hand an encoded frame over to the reactor owning this context
+		 *
+		 * May be called from any reactor thread.
+		 *
+		 * @param encodedMsg
+		 */
+		private void send(ByteBuffer encodedMsg) {
+			send(encodedMsg, false);
+		}
+
+		private void send(ByteBuffer encodedMsg, boolean isPublic) {
+			reactor.execute(() -> queueMessage(encodedMsg, isPublic));
+		}
+
+		private void send(Frame msg) {
+			send(msg.asBuffer().flip());
+		}
+
+		private void send(Broadcast broadcast) {
+			reactor.execute(() -> queueMessage(broadcast));
+		}
+
+		/**
+		 * Hand the frames of the mailbox of this client over to its reactor
+		 *
+		 * @param encodedMsgs
+		 * @param nbFrames
+		 */
+		private void deliverMailbox(ByteBuffer encodedMsgs, int nbFrames) {
+			reactor.execute(() -> queueMessages(encodedMsgs, nbFrames, false));
 		}
 
 		/**
 		 * Update the interestOps of the key looking
-		 * only at values of the boolean closed and
-		 * of both ByteBuffers.
+		 * only at values of the boolean closed,
+		 * of bbin and of the message queue.
 		 *
-		 * The convention is that both buffers are in write-mode before the call
+		 * The convention is that bbin is in write-mode before the call
 		 * to updateInterestOps and after the call.
 		 * Also it is assumed that process has been be called just
 		 * before updateInterestOps.
 		 */
 
 		private void updateInterestOps() {
+			if (detached || !key.isValid()) // closed while processing bbin
+				return;
 			var interestOps = 0;
 			if (!closed && bbin.hasRemaining())
 				interestOps = SelectionKey.OP_READ;
-			if (bbout.position() != 0)
+			if (!queue.isEmpty())
 				interestOps |= SelectionKey.OP_WRITE;
 			if (interestOps == 0){
 				silentlyClose();
@@ -133,26 +291,56 @@ public class ServerChat {
 
 		public void silentlyClose() {
 			//			System.out.println(login + " : silentlyClose");
+			reactor.timers().cancel(idleTimer);
 			try {
-				server.clients.remove(login);
+				if (login != null) {
+					server.clients.unregister(login, this);
+					if (server.cluster != null)
+						server.cluster.absent(login);
+				}
+				for (var room : rooms)
+					server.rooms.leave(room, this);
+				rooms.clear();
 				sc.close();
 			} catch (IOException e) {
 				// ignore exception
 			}
+			releaseBuffer();
+		}
+
+		/**
+		 * Gives bbin back to the pool once the context does not read anymore
+		 */
+		private void releaseBuffer() {
+			if (released)
+				return;
+			released = true;
+			server.buffers.release(bbin);
+			server.connectionsClosed.increment();
+			server.queuedFrames.add(-reportedFrames);
+			server.queuedBytes.add(-reportedBytes);
+			reportedFrames = 0;
+			reportedBytes = 0;
 		}
 
 		/**
 		 * Performs the read action on sc
 		 *
-		 * The convention is that both buffers are in write-mode before the call
+		 * The convention is that bbin is in write-mode before the call
 		 * to doRead and after the call
 		 *
 		 * @throws IOException
 		 */
 		@Override
 		public void doRead() throws IOException {
-			if (sc.read(bbin) == -1)
+			var read = sc.read(bbin);
+			if (read == -1)
 				closed = true;
+			else {
+				server.bytesRead.add(read);
+				lastRead = System.nanoTime();
+				pinged = false;
+			}
 			processIn();
 			updateInterestOps();
 		}
@@ -160,58 +348,88 @@ public class ServerChat {
 		/**
 		 * Performs the write action on sc
 		 *
-		 * The convention is that both buffers are in write-mode before the call
-		 * to doWrite and after the call
+		 * The queued frames are written directly with gathering writes,
+		 * a partially written frame stays at the head of the queue.
 		 *
 		 * @throws IOException
 		 */
 		@Override
 		public void doWrite() throws IOException {
 			//			System.out.println("doWrite");
-			//			System.out.println("bbout = " + bbout);
-			sc.write(bbout.flip());
-			bbout.compact();
-			//			System.out.println("bbout = " + bbout);
-			processOut();
+			server.bytesWritten.add(queue.writeTo(sc));
+			reportQueue();
 			updateInterestOps();
 		}
 		
 		private void addToconnectionAsked(String string){
-			connectionAsked.add(string);
+			reactor.execute(() -> connectionAsked.add(string));
 		}
 
 		@Override
 		public void visit(FrameLogin frameLogin) {
-			if (login != null || frameLogin.getLoginSender().isEmpty()) {
+			if (login != null || claiming || frameLogin.getLoginSender().isEmpty()) {
 				silentlyClose();
 				return;
 			}
 			var login = frameLogin.getLoginSender().get();
-			if (server.clients.containsKey(login))
-				queue.add(new FrameLoginRefused());
+			if (server.cluster == null) {
+				acceptLogin(login, server.clients.register(login, this));
+				return;
+			}
+			// the login is registered as soon as it is granted, before the frames
+			// the owner of the login forwards after granting it
+			claiming = true;
+			server.cluster.claim(login, granted -> {
+				var accepted = granted && server.clients.register(login, this);
+				if (granted && !accepted)
+					server.cluster.absent(login);
+				reactor.execute(() -> {
+					claiming = false;
+					if (accepted && !key.isValid()) { // closed while the login was claimed
+						server.clients.unregister(login, this);
+						server.cluster.absent(login);
+						return;
+					}
+					acceptLogin(login, accepted);
+					if (accepted)
+						server.cluster.present(login);
+				});
+			});
+			//			System.out.println("visit FrameLogin");
+		}
+
+		private void acceptLogin(String login, boolean accepted) {
+			if (!accepted) {
+				server.loginsRefused.increment();
+				queueMessage(new FrameLoginRefused());
+			}
 			else {
 				//				System.out.println("login accepted");
-				server.clients.put(this.login = login, key);
-				queue.add(new FrameLoginAccepted());
+				this.login = login;
+				server.loginsAccepted.increment();
+				queueMessage(new FrameLoginAccepted());
+				if (server.mailboxes != null)
+					server.mailboxes.drain(login);
 			}
-			//			System.out.println("visit FrameLogin");
-			processOut();
-			updateInterestOps();
 		}
 
 		@Override
 		public void visit(FrameMessage frameMessage) {
 			//			System.out.println("FrameMessage");
 			var senderLogin = frameMessage.getLoginSender();
-			if (senderLogin.isPresent() && senderLogin.get().equals(login))
-				server.broadcast(frameMessage);
+			if (senderLogin.isPresent() && senderLogin.get().equals(login)) {
+				if (server.batchWindowNanos < 0)
+					server.publish(frameMessage, true);
+				else
+					reactor.publish(frameMessage);
+			}
 		}
 
 		@Override
 		public void visit(FrameMessagePrivate frameMessagePrivate) {
-			var targetLogin = frameMessagePrivate.getLoginTarget();
-			if (frameMessagePrivate.getLoginSender().get().equals(login) && server.clients.containsKey(targetLogin.get()))
-				((Context) server.clients.get(targetLogin.get()).attachment()).queueMessage(frameMessagePrivate);
+			if (!frameMessagePrivate.getLoginSender().get().equals(login))
+				return;
+			server.sendPrivate(frameMessagePrivate, true);
 		}
 
 		@Override
@@ -223,8 +441,14 @@ public class ServerChat {
 		public void visit(FrameKoPrivate frameKoPrivate) {
 			var senderLogin = frameKoPrivate.getLoginSender();
 			var targetLogin = frameKoPrivate.getLoginTarget();
-			if (targetLogin.get().equals(login))
-				((Context) server.clients.get(senderLogin.get()).attachment()).queueMessage(frameKoPrivate);
+			if (!targetLogin.get().equals(login))
+				return;
+			connectionAsked.remove(senderLogin.get());
+			var sender = server.clients.lookup(senderLogin.get());
+			if (sender != null)
+				sender.send(frameKoPrivate);
+			else if (server.cluster != null)
+				server.cluster.forward(senderLogin.get(), frameKoPrivate.asBuffer().flip());
 		}
 
 		@Override
@@ -235,10 +459,17 @@ public class ServerChat {
 		@Override
 		public void visit(FrameLoginPrivate frameLoginPrivate) {
 			//			System.out.println(" [debug] received private login from client");
-			var pc = server.privateConnections.get(frameLoginPrivate.getLong().getAsLong());
-			if (pc != null && (connectionAsked.contains(frameLoginPrivate.getLoginSender().get()) || connectionAsked.contains(frameLoginPrivate.getLoginTarget().get())))
-				pc.connect(key, sc);
-			else silentlyClose();
+			// the connect_id is only known by the two clients of the private connection
+			var pc = server.privateConnections.lookup(frameLoginPrivate.getLong().getAsLong());
+			if (pc == null || login != null) {
+				silentlyClose();
+				return;
+			}
+			detached = true;
+			reactor.timers().cancel(idleTimer); // the private connection has its own deadline
+			var pending = ByteBuffer.allocate(bbin.position()).put(bbin.flip());
+			releaseBuffer();
+			pc.connect(reactor, key, pending.flip());
 		}
 
 		@Override
@@ -249,190 +480,698 @@ public class ServerChat {
 		@Override
 		public void visit(FrameOkPrivate frameOkPrivate) {
 			var senderLogin = frameOkPrivate.getLoginSender();
-			if(!connectionAsked.contains(senderLogin.get())){
+			var targetLogin = frameOkPrivate.getLoginTarget();
+			if (!targetLogin.get().equals(login) || !connectionAsked.remove(senderLogin.get()))
+				return;
+			var sender = server.clients.lookup(senderLogin.get());
+			if (sender == null) {
+				// a private connection is relayed by a single server, the requester is told it is refused
+				if (server.cluster != null)
+					server.cluster.forward(senderLogin.get(), new FrameKoPrivate(senderLogin.get(), login).asBuffer().flip());
 				return;
 			}
+			var pc = server.privateConnections.open(senderLogin.get(), login, id -> new PrivateConnection(
+					server.privateConnections, id, reactor, server.buffers, server.tunnels, server.relayedBytes));
+			if (pc == null) { // too many handshakes in progress for one of the logins
+				sender.send(new FrameKoPrivate(senderLogin.get(), login));
+				return;
+			}
+			var frameIdPrivate = new FrameIdPrivate(frameOkPrivate, pc.getId());
+			var encodedIdPrivate = frameIdPrivate.asBuffer().flip().asReadOnlyBuffer();
+			sender.send(encodedIdPrivate.duplicate());
+			queueMessage(encodedIdPrivate.duplicate());
+		}
 
-			var targetLogin = frameOkPrivate.getLoginTarget();
-			var id = (long)  new Random().nextLong();
-			var frameIdPrivate = new FrameIdPrivate(frameOkPrivate, id);
-			if (targetLogin.get().equals(login)) {
-				((Context) server.clients.get(senderLogin.get()).attachment()).queueMessage(frameIdPrivate);
-				((Context) server.clients.get(targetLogin.get()).attachment()).queueMessage(frameIdPrivate);
+		@Override
+		public void visit(FrameHistoryRequest frameHistoryRequest) {
+			if (login == null) {
+				silentlyClose();
+				return;
 			}
-			server.privateConnections.put(id, new PrivateConnection());
+			if (server.history == null)
+				return;
+			server.history.read(frameHistoryRequest.getLong().getAsLong(), frameHistoryRequest.getFromTime(),
+					frameHistoryRequest.getCount(), frames -> reactor.execute(() -> {
+						for (var frame : frames)
+							queueMessage(frame);
+					}));
 		}
 
-		public void visit(FrameRequestPrivate frameRequestPrivate) {
-			var senderLogin = frameRequestPrivate.getLoginSender();
-			var targetLogin = frameRequestPrivate.getLoginTarget();
-			if (senderLogin.get().equals(login) && server.clients.containsKey(targetLogin.get())){
-				//System.out.println(senderLogin.get());
-				//System.out.println(login);
-				((Context)server.clients.get(frameRequestPrivate.getLoginTarget().get()).attachment()).addToconnectionAsked(login);
-				//System.out.println(((Context)server.clients.get(frameRequestPrivate.getLoginTarget().get()).attachment()).connectionAsked);
-				((Context) server.clients.get(targetLogin.get()).attachment()).queueMessage(frameRequestPrivate);
+		@Override
+		public void visit(FrameHistoryMessage frameHistoryMessage) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FrameJoinRoom frameJoinRoom) {
+			if (login == null || !frameJoinRoom.getLoginSender().get().equals(login))
+				return;
+			var room = frameJoinRoom.getRoom();
+			if (rooms.size() < MAX_ROOMS_PER_CLIENT && rooms.add(room))
+				server.rooms.join(room, this);
+		}
 
+		@Override
+		public void visit(FrameLeaveRoom frameLeaveRoom) {
+			if (login == null || !frameLeaveRoom.getLoginSender().get().equals(login))
+				return;
+			var room = frameLeaveRoom.getRoom();
+			if (rooms.remove(room))
+				server.rooms.leave(room, this);
+		}
+
+		@Override
+		public void visit(FrameRoomMessage frameRoomMessage) {
+			if (login == null || !frameRoomMessage.getLoginSender().get().equals(login))
+				return;
+			var room = frameRoomMessage.getRoom();
+			if (rooms.contains(room)) // only the subscribers may talk in a room
+				server.publish(frameRoomMessage, true);
+		}
+
+		@Override
+		public void visit(FrameCluster frameCluster) {
+			silentlyClose(); // only sent between the servers of a cluster
+		}
+
+		@Override
+		public void visit(FrameBatch frameBatch) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FrameCompressionRequest frameCompressionRequest) {
+			if (login == null) {
+				silentlyClose();
+				return;
+			}
+			if (compressing || !frameCompressionRequest.getAlgorithms().contains(FrameCompressed.DEFLATE))
+				return;
+			queueMessage(new FrameCompressionAccepted(FrameCompressed.DEFLATE));
+			compressing = true; // the frames queued from now on may be compressed
+		}
+
+		@Override
+		public void visit(FrameCompressionAccepted frameCompressionAccepted) {
+			// DO NOTHING
+		}
+
+		@Override
+		public void visit(FrameCompressed frameCompressed) {
+			if (!compressing) {
+				silentlyClose();
+				return;
 			}
+			List<Frame> frames;
+			try {
+				frames = FrameReader.readInflated(reactor.codec().inflate(frameCompressed));
+			} catch (IllegalArgumentException e) {
+				silentlyClose();
+				return;
+			}
+			for (var frame : frames) {
+				if (!key.isValid())
+					return;
+				server.framesIn[frame.getOpcode()].increment();
+				frame.accept(this);
+			}
+		}
 
+		@Override
+		public void visit(FramePing framePing) {
+			queueMessage(new FramePong(framePing.getLong().getAsLong()));
+		}
+
+		@Override
+		public void visit(FramePong framePong) {
+			// DO NOTHING, any frame read is a sign of life
+		}
+
+		public void visit(FrameRequestPrivate frameRequestPrivate) {
+			if (!frameRequestPrivate.getLoginSender().get().equals(login))
+				return;
+			server.requestPrivate(frameRequestPrivate, true);
 		}
 
 	}
 
 	static private int BUFFER_SIZE = 1_024;
-	static private Logger logger = Logger.getLogger(ServerChat.class.getName());
+	static private int DEFAULT_MAX_QUEUED_FRAMES = 4_096;
+	static private long DEFAULT_MAX_QUEUED_BYTES = 1 << 20;
+	static private int DEFAULT_MAILBOX_SIZE = 100;
+	static private int MAX_ROOMS_PER_CLIENT = 256;
+	static private long DEFAULT_MAILBOX_TTL = 24 * 3_600;
+	static private long DEFAULT_MAILBOX_MEMORY = 8 << 20;
+	static private long DEFAULT_BATCH_WINDOW = -1; // clients must know BATCH frames to turn batching on
+	static private long DEFAULT_IDLE_TIMEOUT = 120;
+	static private int DEFAULT_MAX_PENDING_PRIVATE = 8;
+	static private long DEFAULT_HANDSHAKE_TIMEOUT = 30;
 
 	private final ServerSocketChannel serverSocketChannel;
-	private final Selector selector;
-	private final Map<String, SelectionKey> clients = new HashMap<>();
-	private final Map<Long, PrivateConnection> privateConnections = new HashMap<>();
+	private final Reactor[] reactors;
+	private int nextReactor;
+	private final LoginRegistry<Context> clients = new LoginRegistry<>();
+	private final RoomRegistry<Context> rooms = new RoomRegistry<>();
+	private final PendingTunnels privateConnections = new PendingTunnels(DEFAULT_MAX_PENDING_PRIVATE,
+			TimeUnit.SECONDS.toNanos(DEFAULT_HANDSHAKE_TIMEOUT));
+	private int maxQueuedFrames = DEFAULT_MAX_QUEUED_FRAMES;
+	private long maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+	private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.dropOldest();
+	private BufferPool buffers = new BufferPool();
+	private int metricsPort = -1;
+	private HistoryLog history;
+	private int mailboxSize = DEFAULT_MAILBOX_SIZE;
+	private long mailboxTtlMillis = 1_000 * DEFAULT_MAILBOX_TTL;
+	private long mailboxMemory = DEFAULT_MAILBOX_MEMORY;
+	private Path mailboxDirectory;
+	private Mailboxes mailboxes;
+	private long batchWindowNanos = DEFAULT_BATCH_WINDOW;
+	private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(DEFAULT_IDLE_TIMEOUT);
+
+	private List<InetSocketAddress> clusterNodes;
+	private int clusterNode;
+	private Cluster cluster;
+
+	private final Metrics metrics = new Metrics();
+	private final LongAdder connectionsOpened = metrics.counter("chaton_connections_opened_total", "Client connections accepted");
+	private final LongAdder connectionsClosed = metrics.counter("chaton_connections_closed_total", "Client connections closed or turned into private connections");
+	private final LongAdder loginsAccepted = metrics.counter("chaton_logins_accepted_total", "LOGIN frames accepted");
+	private final LongAdder loginsRefused = metrics.counter("chaton_logins_refused_total", "LOGIN frames refused");
+	private final LongAdder[] framesIn = metrics.counters("chaton_frames_in_total", "opcode", FrameReader.NB_OPCODES, "Frames received from clients by opcode");
+	private final LongAdder[] framesOut = metrics.counters("chaton_frames_out_total", "opcode", FrameReader.NB_OPCODES, "Frames queued for clients by opcode");
+	private final LongAdder bytesRead = metrics.counter("chaton_bytes_read_total", "Bytes read from client connections");
+	private final LongAdder bytesWritten = metrics.counter("chaton_bytes_written_total", "Bytes written to client connections");
+	private final LongAdder queuedFrames = metrics.gauge("chaton_outbound_queued_frames", "Frames waiting in the outbound queues");
+	private final LongAdder queuedBytes = metrics.gauge("chaton_outbound_queued_bytes", "Bytes waiting in the outbound queues");
+	private final LongAccumulator maxQueueDepth = new LongAccumulator(Math::max, 0);
+	private final LongAdder broadcasts = metrics.counter("chaton_broadcasts_total", "Public and room messages fanned out");
+	private final LongAdder broadcastRecipients = metrics.counter("chaton_broadcast_recipients_total", "Clients a public or room message was handed to");
+	private final LongAdder broadcastNanos = metrics.counter("chaton_broadcast_nanoseconds_total", "Time spent handing public and room messages to the reactors");
+	private final LongAccumulator maxBroadcastNanos = new LongAccumulator(Math::max, 0);
+	private final LongAdder batches = metrics.counter("chaton_batches_total", "Batches of public messages fanned out as a single frame");
+	private final LongAdder batchedMessages = metrics.counter("chaton_batched_messages_total", "Public messages fanned out in a batch");
+	private final LongAdder compressedFrames = metrics.counter("chaton_compressed_frames_total", "COMPRESSED frames queued for clients");
+	private final LongAdder compressionSavedBytes = metrics.counter("chaton_compression_saved_bytes_total", "Bytes saved by compressing the frames queued for clients");
+	private final LongAdder idleClosed = metrics.counter("chaton_idle_closed_total", "Connections closed after being silent for the idle timeout");
+	private final LongAdder tunnels = metrics.gauge("chaton_private_tunnels", "Private connections with both clients connected");
+	private final LongAdder relayedBytes = metrics.counter("chaton_private_relayed_bytes_total", "Bytes relayed between the clients of private connections");
 
 	public ServerChat(int port) throws IOException {
+		this(port, 1);
+	}
+
+	/**
+	 * @param port
+	 * @param nbReactors number of selector threads sharing the clients
+	 * @throws IOException
+	 */
+	public ServerChat(int port, int nbReactors) throws IOException {
+		if (nbReactors < 1)
+			throw new IllegalArgumentException("at least one reactor is needed");
 		serverSocketChannel = ServerSocketChannel.open();
 		serverSocketChannel.bind(new InetSocketAddress(port));
-		selector = Selector.open();
+		reactors = new Reactor[nbReactors];
+		for (var i = 0; i < nbReactors; i++)
+			reactors[i] = new Reactor(this, "reactor-" + i);
+		metrics.gauge("chaton_connections", "Client connections open", () -> connectionsOpened.sum() - connectionsClosed.sum());
+		metrics.gauge("chaton_logins", "Clients logged in", clients::size);
+		metrics.gauge("chaton_outbound_queue_max_frames", "Deepest outbound queue seen, in frames", maxQueueDepth::get);
+		metrics.gauge("chaton_broadcast_max_nanoseconds", "Longest time spent handing a public or room message to the reactors", maxBroadcastNanos::get);
+		metrics.gauge("chaton_rooms", "Rooms with at least one subscriber", rooms::size);
+		metrics.gauge("chaton_private_pending", "Private connections waiting for their clients", () -> privateConnections.size());
+		metrics.counter("chaton_private_expired_total", "Private connections whose clients did not connect before the handshake deadline",
+				privateConnections::expiredCount);
+		metrics.counter("chaton_private_refused_total", "Private connections refused because a login took part in too many handshakes",
+				privateConnections::refusedCount);
+		metrics.counter("chaton_slow_consumer_fired_total", "Times the slow consumer policy fired", () -> slowConsumerPolicy.firedCount());
+		metrics.counter("chaton_slow_consumer_dropped_frames_total", "Frames dropped by the slow consumer policy", () -> slowConsumerPolicy.droppedCount());
+		metrics.gauge("chaton_buffers_direct_bytes", "Direct memory allocated by the buffer pool", () -> buffers.directBytes());
+		metrics.gauge("chaton_buffers_in_use_bytes", "Bytes of the buffer pool leased to connections", () -> buffers.inUseBytes());
+		metrics.counter("chaton_buffers_heap_fallbacks_total", "Buffers allocated on the heap once the direct memory cap was reached", () -> buffers.heapFallbackCount());
+		metrics.counter("chaton_history_appended_total", "Public messages appended to the history", () -> history == null ? 0 : history.appendedCount());
+		metrics.counter("chaton_history_syncs_total", "Writes of the history forced to disk", () -> history == null ? 0 : history.syncCount());
+		metrics.gauge("chaton_mailbox_frames", "Private messages waiting for their target", () -> mailboxes == null ? 0 : mailboxes.storedCount());
+		metrics.gauge("chaton_mailbox_memory_bytes", "Bytes of the waiting private messages kept in memory", () -> mailboxes == null ? 0 : mailboxes.memoryBytes());
+		metrics.counter("chaton_mailbox_deposited_total", "Private messages kept for a disconnected target", () -> mailboxes == null ? 0 : mailboxes.depositedCount());
+		metrics.counter("chaton_mailbox_delivered_total", "Private messages delivered from a mailbox", () -> mailboxes == null ? 0 : mailboxes.deliveredCount());
+		metrics.counter("chaton_mailbox_dropped_total", "Private messages dropped from a full mailbox", () -> mailboxes == null ? 0 : mailboxes.droppedCount());
+		metrics.counter("chaton_mailbox_expired_total", "Private messages expired in a mailbox", () -> mailboxes == null ? 0 : mailboxes.expiredCount());
+		metrics.counter("chaton_mailbox_spilled_total", "Private messages spilled to disk", () -> mailboxes == null ? 0 : mailboxes.spilledCount());
+		metrics.gauge("chaton_cluster_links_up", "Links to the other nodes of the cluster which are up", () -> cluster == null ? 0 : cluster.linksUp());
+		metrics.gauge("chaton_cluster_remote_logins", "Clients logged in on the other nodes of the cluster", () -> cluster == null ? 0 : cluster.remoteLogins());
+		metrics.counter("chaton_cluster_frames_sent_total", "Frames written on the links to the other nodes", () -> cluster == null ? 0 : cluster.forwardedCount());
+		metrics.counter("chaton_cluster_batches_sent_total", "Writes on the links to the other nodes", () -> cluster == null ? 0 : cluster.batchCount());
+		metrics.counter("chaton_cluster_dropped_frames_total", "Frames for the other nodes dropped because their link was down or full", () -> cluster == null ? 0 : cluster.droppedCount());
+		metrics.counter("chaton_buffers_leaks_total", "Buffers reclaimed from connections that never released them", () -> buffers.leakCount());
 	}
 
-	public void launch() throws IOException {
-		serverSocketChannel.configureBlocking(false);
-		serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-		while(!Thread.interrupted()) {
+	/**
+	 * Sets the limits of the outbound queue of each client, must be called before launch.
+	 *
+	 * @param maxFrames maximum number of frames waiting to be written to a client
+	 * @param maxBytes maximum number of bytes waiting to be written to a client
+	 * @param policy what to do with a frame that does not fit
+	 */
+	public void setOutboundLimits(int maxFrames, long maxBytes, SlowConsumerPolicy policy) {
+		if (maxFrames < 1 || maxBytes < 1)
+			throw new IllegalArgumentException("outbound limits must be positive");
+		maxQueuedFrames = maxFrames;
+		maxQueuedBytes = maxBytes;
+		slowConsumerPolicy = policy;
+	}
 
+	public SlowConsumerPolicy getSlowConsumerPolicy() {
+		return slowConsumerPolicy;
+	}
 
-			printKeys(); // for debug
-			System.out.println("Starting select");
-			try {
-				selector.select(this::treatKey);
+	/**
+	 * Sets the pool of the connection buffers, must be called before launch.
+	 *
+	 * @param buffers
+	 */
+	public void setBufferPool(BufferPool buffers) {
+		this.buffers = buffers;
+	}
 
-			} catch (UncheckedIOException tunneled) {
-				throw tunneled.getCause();
-			}
-			System.out.println("Select finished");
-		}
+	public BufferPool getBufferPool() {
+		return buffers;
 	}
 
-	private void treatKey(SelectionKey key) {
-		printSelectedKey(key); // for debug
-		try {
-			if (key.isValid() && key.isAcceptable()) {
-				doAccept(key);
-			}
-		} catch(IOException ioe) {
-			// lambda call in select requires to tunnel IOException
-			throw new UncheckedIOException(ioe);
+	/**
+	 * Serves the metrics on http://localhost:port/metrics once launched, must be called before launch.
+	 *
+	 * @param port
+	 */
+	public void setMetricsPort(int port) {
+		this.metricsPort = port;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Keeps the public messages in a history the clients may read, must be called before launch.
+	 *
+	 * @param history closed when the server stops
+	 */
+	public void setHistory(HistoryLog history) {
+		this.history = history;
+	}
+
+	/**
+	 * Sets the limits of the mailboxes keeping the private messages of disconnected clients, must be called before launch.
+	 *
+	 * @param maxMessages maximum number of messages kept for a client, 0 to drop them
+	 * @param ttlMillis time after which a kept message is dropped
+	 * @param maxMemoryBytes bytes of the kept messages held in memory, the others are spilled to disk
+	 * @param directory directory of the spilled messages, null for a temporary directory
+	 */
+	public void setMailboxLimits(int maxMessages, long ttlMillis, long maxMemoryBytes, Path directory) {
+		if (maxMessages < 0 || ttlMillis < 1 || maxMemoryBytes < 0)
+			throw new IllegalArgumentException("invalid mailbox limits");
+		mailboxSize = maxMessages;
+		mailboxTtlMillis = ttlMillis;
+		mailboxMemory = maxMemoryBytes;
+		mailboxDirectory = directory;
+	}
+
+	/**
+	 * Sets how long the public messages of the clients of a reactor are held to be
+	 * fanned out as a single frame, must be called before launch.
+	 *
+	 * Batching is off by default, since a client which does not know BATCH frames is
+	 * disconnected when it reads one: it must only be turned on for such clients.
+	 *
+	 * @param millis 0 to batch the messages read by a reactor at once, negative to fan each message out on its own
+	 */
+	public void setBatchWindow(long millis) {
+		batchWindowNanos = millis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	long batchWindowNanos() {
+		return batchWindowNanos;
+	}
+
+	/**
+	 * Sets how long a connection may stay silent before being closed, must be called before launch.
+	 *
+	 * A client silent for half the timeout is sent a PING, which it must answer with a PONG.
+	 *
+	 * @param seconds 0 to never close silent connections
+	 */
+	public void setIdleTimeout(long seconds) {
+		if (seconds < 0)
+			throw new IllegalArgumentException("negative idle timeout");
+		idleTimeoutNanos = TimeUnit.SECONDS.toNanos(seconds);
+	}
+
+	/**
+	 * Limits the private connections negotiated but not established yet, must be called before launch.
+	 *
+	 * @param maxPerLogin number of such private connections a login may take part in, an OK_PRIVATE
+	 * beyond is answered by a KO_PRIVATE to the requester
+	 * @param handshakeTimeoutSeconds how long the two clients have to connect once they got
+	 * the connect_id, 0 to wait for ever
+	 */
+	public void setPrivateConnectionLimits(int maxPerLogin, long handshakeTimeoutSeconds) {
+		if (handshakeTimeoutSeconds < 0)
+			throw new IllegalArgumentException("negative handshake timeout");
+		privateConnections.setLimits(maxPerLogin, TimeUnit.SECONDS.toNanos(handshakeTimeoutSeconds));
+	}
+
+	/**
+	 * Makes this server a node of a cluster sharing the logins of its clients, must be called before launch.
+	 *
+	 * @param nodes the cluster addresses of the nodes, in the same order on every node
+	 * @param node the index of this node, which listens to the other nodes on the port of its address
+	 */
+	public void setCluster(List<InetSocketAddress> nodes, int node) {
+		if (node < 0 || node >= nodes.size())
+			throw new IllegalArgumentException("no node " + node + " in the cluster");
+		clusterNodes = List.copyOf(nodes);
+		clusterNode = node;
+	}
+
+	/**
+	 * Starts the reactors and accepts clients on the calling thread,
+	 * handing each of them round-robin to a reactor.
+	 *
+	 * @throws IOException
+	 */
+	public void launch() throws IOException {
+		HttpServer metricsServer = null;
+		if (metricsPort >= 0)
+			metricsServer = metrics.serve(metricsPort);
+		if (mailboxSize > 0)
+			mailboxes = new Mailboxes(this::recipientOf, mailboxSize, mailboxTtlMillis, mailboxMemory, mailboxDirectory);
+		if (clusterNodes != null) {
+			cluster = new Cluster(clusterNodes, clusterNode, new ClusterHandler(this));
+			cluster.start();
 		}
+		for (var reactor : reactors)
+			reactor.start();
 		try {
-			if (key.isValid() && key.isWritable()) {
-				((Connection) key.attachment()).doWrite();
-			}
-			if (key.isValid() && key.isReadable()) {
-				((Connection) key.attachment()).doRead();
+			while(!Thread.interrupted()) {
+				var socket = serverSocketChannel.accept();
+				socket.configureBlocking(false);
+				nextReactor().register(socket);
 			}
-		} catch (IOException e) {
-			logger.log(Level.INFO,"Connection closed with client due to IOException",e);
-			silentlyClose(key);
+		} finally {
+			for (var reactor : reactors)
+				reactor.shutdown();
+			if (metricsServer != null)
+				metricsServer.stop(0);
+			if (cluster != null)
+				cluster.close();
+			if (history != null)
+				history.close();
+			if (mailboxes != null)
+				mailboxes.close();
 		}
+	}
 
+	private Reactor nextReactor() {
+		var reactor = reactors[nextReactor];
+		nextReactor = (nextReactor + 1) % reactors.length;
+		return reactor;
+	}
 
+	private Mailboxes.Recipient recipientOf(String login) {
+		var context = clients.lookup(login);
+		if (context != null)
+			return context::deliverMailbox;
+		var node = cluster == null ? -1 : cluster.nodeOf(login);
+		return node < 0 ? null : (frames, count) -> cluster.forward(node, frames);
 	}
 
-	private void doAccept(SelectionKey key) throws IOException {
-		var socket = serverSocketChannel.accept();
-		if (socket != null) {
-			socket.configureBlocking(false);
-			var newKey = socket.register(selector, SelectionKey.OP_READ);
-			newKey.attach(new Context(this, newKey));
-		}
+	Connection newContext(Reactor reactor, SelectionKey key) {
+		return new Context(this, reactor, key);
+	}
+
+	/**
+	 * Add a public message to all connected clients queue, and keep it in the history
+	 *
+	 * @param msg
+	 * @param forward true if the message comes from a client of this node and must be forwarded to the other nodes
+	 */
+	private void publish(FrameMessage msg, boolean forward) {
+		var encodedMsg = fanOut(msg, clients.snapshot());
+		if (forward && cluster != null)
+			cluster.broadcast(encodedMsg);
+		if (history != null)
+			history.append(msg.getLoginSender().get(), msg.getMessage().get());
+	}
+
+	/**
+	 * Add the public messages of a reactor batch to all connected clients queue, and keep them in the history
+	 *
+	 * A batch of a single message is sent as a MESSAGE frame.
+	 *
+	 * @param msgs
+	 * @param batch the encoded messages
+	 */
+	void publish(List<FrameMessage> msgs, FrameBatch.Builder batch) {
+		if (msgs.size() == 1)
+			publish(msgs.get(0), true);
+		else
+			publish(msgs, batch.encode().flip().asReadOnlyBuffer(), true);
 	}
 
-	private void silentlyClose(SelectionKey key) {
-		((Connection) key.attachment()).silentlyClose();
+	/**
+	 * @param msgs
+	 * @param encodedBatch the BATCH frame of the messages, in read-mode
+	 * @param forward true if the messages come from clients of this node and must be forwarded to the other nodes
+	 */
+	private void publish(List<FrameMessage> msgs, ByteBuffer encodedBatch, boolean forward) {
+		fanOut(encodedBatch, clients.snapshot());
+		batches.increment();
+		batchedMessages.add(msgs.size());
+		if (forward && cluster != null)
+			cluster.broadcast(encodedBatch);
+		if (history != null)
+			for (var msg : msgs)
+				history.append(msg.getLoginSender().get(), msg.getMessage().get());
 	}
 
 	/**
-	 * Add a message to all connected clients queue
+	 * Add a room message to the queue of the subscribers of the room
 	 *
 	 * @param msg
+	 * @param forward true if the message comes from a client of this node and must be forwarded to the other nodes
 	 */
-	private void broadcast(Frame msg) {
-		for (var key : clients.values())
-			((Context) key.attachment()).queueMessage(msg);
+	private void publish(FrameRoomMessage msg, boolean forward) {
+		var encodedMsg = fanOut(msg, rooms.subscribers(msg.getRoom()));
+		if (forward && cluster != null)
+			cluster.broadcast(encodedMsg);
 	}
 
-	public static void main(String[] args) throws NumberFormatException, IOException {
-		if (args.length!=1){
-			usage();
+	/**
+	 * Add a public message to the queue of each recipient
+	 *
+	 * The frame is encoded only once into a read-only buffer and every
+	 * client queue receives its own view of it, or of its COMPRESSED frame.
+	 *
+	 * @param msg
+	 * @param recipients
+	 * @return the encoded frame, in read-mode
+	 */
+	private ByteBuffer fanOut(Frame msg, List<Context> recipients) {
+		return fanOut(msg.asBuffer().flip().asReadOnlyBuffer(), recipients);
+	}
+
+	/**
+	 * @param encodedMsg in read-mode, never modified
+	 * @param recipients
+	 * @return encodedMsg
+	 */
+	private ByteBuffer fanOut(ByteBuffer encodedMsg, List<Context> recipients) {
+		var start = System.nanoTime();
+		var broadcast = new Broadcast(encodedMsg);
+		for (var context : recipients)
+			context.send(broadcast);
+		var elapsed = System.nanoTime() - start;
+		broadcasts.increment();
+		broadcastRecipients.add(recipients.size());
+		broadcastNanos.add(elapsed);
+		maxBroadcastNanos.accumulate(elapsed);
+		return encodedMsg;
+	}
+
+	/**
+	 * Add a private message to the queue of its target, wherever it is connected in the cluster
+	 *
+	 * A message whose target is not connected is kept in the mailbox of the node owning
+	 * the target login, or of this node if the owner cannot be reached.
+	 *
+	 * @param msg
+	 * @param fromClient true if the message comes from a client of this node, false if it was forwarded by another node
+	 */
+	private void sendPrivate(FrameMessagePrivate msg, boolean fromClient) {
+		var targetLogin = msg.getLoginTarget().get();
+		var target = clients.lookup(targetLogin);
+		if (target != null) {
+			target.send(msg);
 			return;
 		}
-		new ServerChat(Integer.parseInt(args[0])).launch();
+		if (cluster != null) {
+			var encodedMsg = msg.asBuffer().flip().asReadOnlyBuffer();
+			// a forwarded message only goes to the owner, which keeps it if the target left
+			if ((fromClient && cluster.forward(targetLogin, encodedMsg.duplicate()))
+					|| cluster.forwardToOwner(targetLogin, encodedMsg.duplicate()))
+				return;
+		}
+		if (mailboxes != null) // kept until the target connects
+			mailboxes.deposit(targetLogin, msg.asBuffer().flip().asReadOnlyBuffer());
 	}
 
-	private static void usage(){
-		System.out.println("Usage : ServerChat port");
+	/**
+	 * Hand a private connection request over to its target, wherever it is connected in the cluster
+	 *
+	 * @param request
+	 * @param fromClient true if the request comes from a client of this node, false if it was forwarded by another node
+	 */
+	private void requestPrivate(FrameRequestPrivate request, boolean fromClient) {
+		var targetLogin = request.getLoginTarget().get();
+		var target = clients.lookup(targetLogin);
+		if (target != null) {
+			target.addToconnectionAsked(request.getLoginSender().get());
+			target.send(request);
+		}
+		else if (fromClient && cluster != null)
+			cluster.forward(targetLogin, request.asBuffer().flip());
 	}
 
-	/***
-	 *  Theses methods are here to help understanding the behavior of the selector
-	 ***/
+	/**
+	 * Frames forwarded by the other nodes of the cluster
+	 */
+	static private class ClusterHandler implements Cluster.Handler {
 
-	private String interestOpsToString(SelectionKey key){
-		if (!key.isValid()) {
-			return "CANCELLED";
+		private final ServerChat server;
+
+		private ClusterHandler(ServerChat server) {
+			this.server = server;
 		}
-		int interestOps = key.interestOps();
-		ArrayList<String> list = new ArrayList<>();
-		if ((interestOps&SelectionKey.OP_ACCEPT)!=0) list.add("OP_ACCEPT");
-		if ((interestOps&SelectionKey.OP_READ)!=0) list.add("OP_READ");
-		if ((interestOps&SelectionKey.OP_WRITE)!=0) list.add("OP_WRITE");
-		return String.join("|",list);
-	}
 
-	public void printKeys() {
-		Set<SelectionKey> selectionKeySet = selector.keys();
-		if (selectionKeySet.isEmpty()) {
-			System.out.println("The selector contains no key : this should not happen!");
-			return;
+		@Override
+		public void receive(FrameMessage frameMessage) {
+			server.publish(frameMessage, false);
 		}
 
-		System.out.println("The selector contains:");
-		for (SelectionKey key : selectionKeySet){
-			SelectableChannel channel = key.channel();
-			if (channel instanceof ServerSocketChannel) {
-				System.out.println("\tKey for ServerSocketChannel : "+ interestOpsToString(key));
-			} else {
-				SocketChannel sc = (SocketChannel) channel;
-				System.out.println("\tKey for Client "+ remoteAddressToString(sc) +" : "+ interestOpsToString(key));
+		@Override
+		public void receive(FrameBatch frameBatch) {
+			if (server.batchWindowNanos < 0) { // the clients of this node may not know BATCH frames
+				for (var frameMessage : frameBatch.getMessages())
+					server.publish(frameMessage, false);
+				return;
 			}
+			server.publish(frameBatch.getMessages(), frameBatch.asBuffer().flip().asReadOnlyBuffer(), false);
 		}
-	}
 
-	private String remoteAddressToString(SocketChannel sc) {
-		try {
-			return sc.getRemoteAddress().toString();
-		} catch (IOException e){
-			return "???";
+		@Override
+		public void receive(FrameRoomMessage frameRoomMessage) {
+			server.publish(frameRoomMessage, false);
+		}
+
+		@Override
+		public void receive(FrameMessagePrivate frameMessagePrivate) {
+			server.sendPrivate(frameMessagePrivate, false);
+		}
+
+		@Override
+		public void receive(FrameRequestPrivate frameRequestPrivate) {
+			server.requestPrivate(frameRequestPrivate, false);
+		}
+
+		@Override
+		public void receive(FrameKoPrivate frameKoPrivate) {
+			var requester = server.clients.lookup(frameKoPrivate.getLoginSender().get());
+			if (requester != null)
+				requester.send(frameKoPrivate);
+		}
 
+		@Override
+		public void claimed(String login) {
+			if (server.mailboxes != null) // delivered to the node of the client
+				server.mailboxes.drain(login);
+		}
+
+		@Override
+		public void revoked(String login) {
+			var context = server.clients.lookup(login);
+			if (context != null)
+				context.reactor.execute(context::silentlyClose);
 		}
 	}
 
-	public void printSelectedKey(SelectionKey key) {
-		SelectableChannel channel = key.channel();
-		if (channel instanceof ServerSocketChannel) {
-			System.out.println("\tServerSocketChannel can perform : " + possibleActionsToString(key));
-		} else {
-			SocketChannel sc = (SocketChannel) channel;
-			System.out.println("\tClient " + remoteAddressToString(sc) + " can perform : " + possibleActionsToString(key));
+	public static void main(String[] args) throws NumberFormatException, IOException {
+		var options = parseOptions(args);
+		if (options == null){
+			usage();
+			return;
 		}
+		var server = new ServerChat(Integer.parseInt(args[0]),
+				Integer.parseInt(options.getOrDefault("reactors", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+		server.setOutboundLimits(
+				Integer.parseInt(options.getOrDefault("max-queued-frames", String.valueOf(DEFAULT_MAX_QUEUED_FRAMES))),
+				Long.parseLong(options.getOrDefault("max-queued-bytes", String.valueOf(DEFAULT_MAX_QUEUED_BYTES))),
+				SlowConsumerPolicy.forName(options.getOrDefault("slow-consumer", "drop-oldest")));
+		if (options.containsKey("max-direct-bytes"))
+			server.setBufferPool(new BufferPool(Long.parseLong(options.get("max-direct-bytes"))));
+		if (options.containsKey("history-dir"))
+			server.setHistory(new HistoryLog(Paths.get(options.get("history-dir")),
+					Long.parseLong(options.getOrDefault("history-sync-ms", "1000")),
+					1_000 * Long.parseLong(options.getOrDefault("history-retention", "0"))));
+		server.setMailboxLimits(
+				Integer.parseInt(options.getOrDefault("mailbox-size", String.valueOf(DEFAULT_MAILBOX_SIZE))),
+				1_000 * Long.parseLong(options.getOrDefault("mailbox-ttl", String.valueOf(DEFAULT_MAILBOX_TTL))),
+				Long.parseLong(options.getOrDefault("mailbox-memory", String.valueOf(DEFAULT_MAILBOX_MEMORY))),
+				options.containsKey("mailbox-dir") ? Paths.get(options.get("mailbox-dir")) : null);
+		server.setBatchWindow(Long.parseLong(options.getOrDefault("batch-window-ms", String.valueOf(DEFAULT_BATCH_WINDOW))));
+		server.setIdleTimeout(Long.parseLong(options.getOrDefault("idle-timeout", String.valueOf(DEFAULT_IDLE_TIMEOUT))));
+		server.setPrivateConnectionLimits(
+				Integer.parseInt(options.getOrDefault("max-pending-private", String.valueOf(DEFAULT_MAX_PENDING_PRIVATE))),
+				Long.parseLong(options.getOrDefault("handshake-timeout", String.valueOf(DEFAULT_HANDSHAKE_TIMEOUT))));
+		if (options.containsKey("cluster"))
+			server.setCluster(parseAddresses(options.get("cluster")), Integer.parseInt(options.getOrDefault("cluster-node", "0")));
+		if (options.containsKey("metrics-port"))
+			server.setMetricsPort(Integer.parseInt(options.get("metrics-port")));
+		server.launch();
 	}
 
-	private String possibleActionsToString(SelectionKey key) {
-		if (!key.isValid()) {
-			return "CANCELLED";
+	/**
+	 * @return the --name=value options following the port, null if the arguments are ill-formed
+	 */
+	private static Map<String, String> parseOptions(String[] args) {
+		if (args.length < 1)
+			return null;
+		var options = new HashMap<String, String>();
+		for (var i = 1; i < args.length; i++) {
+			var tokens = args[i].split("=", 2);
+			if (!tokens[0].startsWith("--") || tokens.length != 2)
+				return null;
+			options.put(tokens[0].substring(2), tokens[1]);
 		}
-		ArrayList<String> list = new ArrayList<>();
-		if (key.isAcceptable()) list.add("ACCEPT");
-		if (key.isReadable()) list.add("READ");
-		if (key.isWritable()) list.add("WRITE");
-		return String.join(" and ",list);
+		return options;
+	}
+
+	/**
+	 * @return the addresses of a comma separated list of host:port
+	 */
+	private static List<InetSocketAddress> parseAddresses(String addresses) {
+		return List.of(addresses.split(",")).stream().map(address -> {
+			var separator = address.lastIndexOf(':');
+			return new InetSocketAddress(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+		}).collect(Collectors.toList());
+	}
+
+	private static void usage(){
+		System.out.println("Usage : ServerChat port [--reactors=n] [--max-queued-frames=n] [--max-queued-bytes=n]\n"
+				+ "                  [--slow-consumer=drop-oldest|drop-public|disconnect] [--max-direct-bytes=n]\n"
+				+ "                  [--metrics-port=n] [--history-dir=path [--history-sync-ms=n] [--history-retention=seconds]]\n"
+				+ "                  [--mailbox-size=n] [--mailbox-ttl=seconds] [--mailbox-memory=n] [--mailbox-dir=path]\n"
+				+ "                  [--batch-window-ms=n] [--idle-timeout=seconds]\n"
+				+ "                  [--max-pending-private=n] [--handshake-timeout=seconds]\n"
+				+ "                  [--cluster=host:port,host:port... --cluster-node=index]");
 	}
-}
\ No newline at end of file
+}
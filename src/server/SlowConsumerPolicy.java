@@ -0,0 +1,132 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides what to do with a frame queued for a client whose outbound
+ * queue already holds too many frames or too many bytes.
+ *
+ * A policy is shared by all the connections of a server and counts how
+ * often it fires and how many frames it dropped.
+ */
+public abstract class SlowConsumerPolicy {
+
+	private final String name;
+	private final LongAdder fired = new LongAdder();
+	private final LongAdder droppedFrames = new LongAdder();
+
+	private SlowConsumerPolicy(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Drops the oldest queued frames to make room for the new one.
+	 */
+	public static SlowConsumerPolicy dropOldest() {
+		return new SlowConsumerPolicy("drop-oldest") {
+			@Override
+			boolean overflow(FrameRing queue, ByteBuffer frame, boolean isPublic, int maxFrames, long maxBytes) {
+				while (isFull(queue, frame, maxFrames, maxBytes) && queue.dropOldest(false))
+					dropped();
+				queue.add(frame, isPublic);
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Drops new public messages, and queued ones to make room for
+	 * other frames, but never drops private frames: the client is
+	 * disconnected when they alone exceed the limits.
+	 */
+	public static SlowConsumerPolicy dropPublic() {
+		return new SlowConsumerPolicy("drop-public") {
+			@Override
+			boolean overflow(FrameRing queue, ByteBuffer frame, boolean isPublic, int maxFrames, long maxBytes) {
+				if (isPublic) {
+					dropped();
+					return true;
+				}
+				while (isFull(queue, frame, maxFrames, maxBytes) && queue.dropOldest(true))
+					dropped();
+				if (isFull(queue, frame, maxFrames, maxBytes))
+					return false;
+				queue.add(frame, false);
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Disconnects the client.
+	 */
+	public static SlowConsumerPolicy disconnect() {
+		return new SlowConsumerPolicy("disconnect") {
+			@Override
+			boolean overflow(FrameRing queue, ByteBuffer frame, boolean isPublic, int maxFrames, long maxBytes) {
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param name drop-oldest, drop-public or disconnect
+	 * @return a new policy
+	 */
+	public static SlowConsumerPolicy forName(String name) {
+		switch (name) {
+		case "drop-oldest":
+			return dropOldest();
+		case "drop-public":
+			return dropPublic();
+		case "disconnect":
+			return disconnect();
+		default:
+			throw new IllegalArgumentException("unknown slow consumer policy " + name);
+		}
+	}
+
+	/**
+	 * Queues the frame if the limits allow it, otherwise lets the policy decide.
+	 *
+	 * @return false if the client must be disconnected
+	 */
+	boolean offer(FrameRing queue, ByteBuffer frame, boolean isPublic, int maxFrames, long maxBytes) {
+		if (!isFull(queue, frame, maxFrames, maxBytes)) {
+			queue.add(frame, isPublic);
+			return true;
+		}
+		fired.increment();
+		return overflow(queue, frame, isPublic, maxFrames, maxBytes);
+	}
+
+	abstract boolean overflow(FrameRing queue, ByteBuffer frame, boolean isPublic, int maxFrames, long maxBytes);
+
+	void dropped() {
+		droppedFrames.increment();
+	}
+
+	static boolean isFull(FrameRing queue, ByteBuffer frame, int maxFrames, long maxBytes) {
+		return queue.size() >= maxFrames || queue.remainingBytes() + frame.remaining() > maxBytes;
+	}
+
+	/**
+	 * @return the number of frames that did not fit in the queue of a client
+	 */
+	public long firedCount() {
+		return fired.sum();
+	}
+
+	/**
+	 * @return the number of frames dropped by this policy
+	 */
+	public long droppedCount() {
+		return droppedFrames.sum();
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
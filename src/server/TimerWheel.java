@@ -0,0 +1,129 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers of a reactor, kept in a hashed timing wheel.
+ *
+ * A timer is linked in the slot of the tick of its deadline, so scheduling and
+ * cancelling a timer costs the same whatever the number of timers. Each call to
+ * advance only looks at the slots of the ticks elapsed since the previous call,
+ * and a timer due in more than one turn of the wheel stays in its slot until its turn.
+ * Timers run at most one tick late.
+ *
+ * Must only be used from the thread of its reactor.
+ */
+class TimerWheel {
+
+	static private final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	static private final int NB_SLOTS = 512; // a turn of the wheel lasts 51.2 seconds
+
+	/**
+	 * A task to run once its deadline is reached, which may be scheduled again
+	 */
+	static final class Timer {
+		private final Runnable task;
+		private Timer previous;
+		private Timer next;
+		private long tick = -1; // -1 when the timer is not scheduled
+
+		Timer(Runnable task) {
+			this.task = task;
+		}
+
+		boolean isScheduled() {
+			return tick >= 0;
+		}
+	}
+
+	private final Timer[] slots = new Timer[NB_SLOTS];
+	private final ArrayList<Timer> expired = new ArrayList<>();
+	private final long origin = System.nanoTime();
+	private long currentTick;
+	private int size;
+
+	/**
+	 * Schedules the timer, or moves it if it is already scheduled.
+	 *
+	 * @param timer
+	 * @param deadline as given by System.nanoTime()
+	 */
+	void schedule(Timer timer, long deadline) {
+		cancel(timer);
+		// rounded up so a timer never runs before its deadline
+		var tick = Math.max(currentTick + 1, (deadline - origin + TICK_NANOS - 1) / TICK_NANOS);
+		var slot = (int) (tick % NB_SLOTS);
+		timer.tick = tick;
+		timer.next = slots[slot];
+		if (timer.next != null)
+			timer.next.previous = timer;
+		slots[slot] = timer;
+		size++;
+	}
+
+	/**
+	 * Does nothing if the timer is not scheduled.
+	 *
+	 * @param timer
+	 */
+	void cancel(Timer timer) {
+		if (!timer.isScheduled())
+			return;
+		if (timer.previous != null)
+			timer.previous.next = timer.next;
+		else
+			slots[(int) (timer.tick % NB_SLOTS)] = timer.next;
+		if (timer.next != null)
+			timer.next.previous = timer.previous;
+		timer.previous = timer.next = null;
+		timer.tick = -1;
+		size--;
+	}
+
+	/**
+	 * Runs the timers whose tick is elapsed.
+	 *
+	 * A timer scheduled again by a task runs at the earliest on the next tick.
+	 *
+	 * @param now as given by System.nanoTime()
+	 */
+	void advance(long now) {
+		var tick = (now - origin) / TICK_NANOS;
+		if (tick <= currentTick)
+			return;
+		var from = Math.max(currentTick + 1, tick - NB_SLOTS + 1); // a whole turn at most
+		for (var t = from; t <= tick; t++)
+			for (var timer = slots[(int) (t % NB_SLOTS)]; timer != null; timer = timer.next)
+				if (timer.tick <= tick)
+					expired.add(timer);
+		currentTick = tick;
+		for (var timer : expired) {
+			if (!timer.isScheduled() || timer.tick > tick) // cancelled or moved by a previous task
+				continue;
+			cancel(timer);
+			timer.task.run();
+		}
+		expired.clear();
+	}
+
+	/**
+	 * @param now as given by System.nanoTime()
+	 * @return the number of milliseconds before the next tick, at least 1
+	 */
+	long millisToNextTick(long now) {
+		var nextTick = origin + (currentTick + 1) * TICK_NANOS;
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextTick - now) + 1);
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the number of scheduled timers
+	 */
+	int size() {
+		return size;
+	}
+}
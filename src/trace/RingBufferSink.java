@@ -0,0 +1,157 @@
+package trace;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded ring buffer of trace events, written by any thread and drained
+ * by a single background thread which prints them on stderr.
+ *
+ * Producers claim a slot with a compare-and-set on the tail and never wait:
+ * when the ring is full the event is dropped, and the number of dropped events
+ * is printed with the next batch. The sink is started with the first event and
+ * drains the remaining events when the JVM exits.
+ */
+final class RingBufferSink implements Runnable {
+
+	static private int CAPACITY = 1 << 14;
+	static private long IDLE_PARK_NANOS = 1_000_000;
+
+	static final class Event {
+		private final long time;
+		private final String thread;
+		private final Tracer.Level level;
+		private final String component;
+		private final String name;
+		private final String key1;
+		private final Object value1;
+		private final String key2;
+		private final Object value2;
+		private final String key3;
+		private final Object value3;
+
+		Event(long time, String thread, Tracer.Level level, String component, String name,
+				String key1, Object value1, String key2, Object value2, String key3, Object value3) {
+			this.time = time;
+			this.thread = thread;
+			this.level = level;
+			this.component = component;
+			this.name = name;
+			this.key1 = key1;
+			this.value1 = value1;
+			this.key2 = key2;
+			this.value2 = value2;
+			this.key3 = key3;
+			this.value3 = value3;
+		}
+
+		private void appendTo(StringBuilder builder) {
+			builder.append(Instant.ofEpochMilli(time)).append(' ').append(level)
+					.append(" [").append(thread).append("] ")
+					.append(component).append(' ').append(name);
+			appendField(builder, key1, value1);
+			appendField(builder, key2, value2);
+			appendField(builder, key3, value3);
+			builder.append('\n');
+		}
+
+		private static void appendField(StringBuilder builder, String key, Object value) {
+			if (key != null)
+				builder.append(' ').append(key).append('=').append(value);
+		}
+	}
+
+	private static class Holder {
+		static private final RingBufferSink INSTANCE = start();
+	}
+
+	private final AtomicReferenceArray<Event> slots = new AtomicReferenceArray<>(CAPACITY);
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head; // only written by the draining thread
+	private final LongAdder dropped = new LongAdder();
+	private final Writer out = new BufferedWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8), 1 << 16);
+	private final StringBuilder line = new StringBuilder();
+
+	private RingBufferSink() {
+	}
+
+	static RingBufferSink instance() {
+		return Holder.INSTANCE;
+	}
+
+	private static RingBufferSink start() {
+		var sink = new RingBufferSink();
+		var thread = new Thread(sink, "trace-sink");
+		thread.setDaemon(true);
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(sink::drain, "trace-sink-shutdown"));
+		return sink;
+	}
+
+	/**
+	 * @param event
+	 * @return false if the ring is full and the event was dropped
+	 */
+	boolean offer(Event event) {
+		while (true) {
+			var claimed = tail.get();
+			if (claimed - head >= CAPACITY) {
+				dropped.increment();
+				return false;
+			}
+			if (tail.compareAndSet(claimed, claimed + 1)) {
+				slots.set(indexOf(claimed), event);
+				return true;
+			}
+		}
+	}
+
+	private static int indexOf(long sequence) {
+		return (int) (sequence & (CAPACITY - 1));
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			if (drain() == 0)
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+		}
+	}
+
+	/**
+	 * Prints the published events and flushes them
+	 *
+	 * @return the number of events printed
+	 */
+	private synchronized int drain() {
+		var count = 0;
+		try {
+			var lost = dropped.sumThenReset();
+			if (lost != 0)
+				out.write(lost + " trace events dropped\n");
+			Event event;
+			// a claimed slot may not be published yet, it is printed with the next batch
+			while ((event = slots.get(indexOf(head))) != null) {
+				slots.set(indexOf(head), null);
+				head++;
+				line.setLength(0);
+				event.appendTo(line);
+				out.append(line);
+				count++;
+			}
+			if (count != 0 || lost != 0)
+				out.flush();
+		} catch (IOException e) {
+			// stderr is gone, nothing left to report to
+		}
+		return count;
+	}
+}
@@ -0,0 +1,81 @@
+package trace;
+
+/**
+ * Level-gated tracing of the events of a component.
+ *
+ * An event has a name and up to three key/value fields. It is handed to an
+ * asynchronous ring buffer and formatted and printed on stderr by a background
+ * thread, so tracing never blocks the selector threads: when the ring buffer
+ * is full, events are dropped and counted.
+ *
+ * The level is read once from -Dtrace.level=error|warn|info|debug|trace, tracing
+ * is off by default. Since the level is a constant, a disabled event costs a
+ * comparison the JIT removes. The values of the fields are formatted later on
+ * another thread: they must be immutable, and callers computing or boxing values
+ * should test isEnabled first.
+ */
+public final class Tracer {
+
+	public enum Level { OFF, ERROR, WARN, INFO, DEBUG, TRACE };
+
+	static private final Level LEVEL = parseLevel(System.getProperty("trace.level", "off"));
+
+	private final String component;
+
+	private Tracer(String component) {
+		this.component = component;
+	}
+
+	/**
+	 * @param component name printed with the events of the tracer
+	 * @return a tracer for the component
+	 */
+	public static Tracer forComponent(String component) {
+		return new Tracer(component);
+	}
+
+	private static Level parseLevel(String name) {
+		try {
+			return Level.valueOf(name.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unknown trace level " + name + ", tracing is off");
+			return Level.OFF;
+		}
+	}
+
+	/**
+	 * @param level
+	 * @return true if the events of the given level are traced
+	 */
+	public boolean isEnabled(Level level) {
+		return level != Level.OFF && level.compareTo(LEVEL) <= 0;
+	}
+
+	public void event(Level level, String name) {
+		if (isEnabled(level))
+			publish(level, name, null, null, null, null, null, null);
+	}
+
+	public void event(Level level, String name, String key1, Object value1) {
+		if (isEnabled(level))
+			publish(level, name, key1, value1, null, null, null, null);
+	}
+
+	public void event(Level level, String name, String key1, Object value1, String key2, Object value2) {
+		if (isEnabled(level))
+			publish(level, name, key1, value1, key2, value2, null, null);
+	}
+
+	public void event(Level level, String name, String key1, Object value1, String key2, Object value2,
+			String key3, Object value3) {
+		if (isEnabled(level))
+			publish(level, name, key1, value1, key2, value2, key3, value3);
+	}
+
+	private void publish(Level level, String name, String key1, Object value1, String key2, Object value2,
+			String key3, Object value3) {
+		RingBufferSink.instance().offer(new RingBufferSink.Event(System.currentTimeMillis(),
+				Thread.currentThread().getName(), level, component, name,
+				key1, value1, key2, value2, key3, value3));
+	}
+}
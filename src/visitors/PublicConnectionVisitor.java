@@ -1,7 +1,16 @@
 package visitors;
 
+import frames.FrameBatch;
+import frames.FrameCluster;
+import frames.FrameCompressed;
+import frames.FrameCompressionAccepted;
+import frames.FrameCompressionRequest;
+import frames.FrameHistoryMessage;
+import frames.FrameHistoryRequest;
 import frames.FrameIdPrivate;
+import frames.FrameJoinRoom;
 import frames.FrameKoPrivate;
+import frames.FrameLeaveRoom;
 import frames.FrameLogin;
 import frames.FrameLoginAccepted;
 import frames.FrameLoginPrivate;
@@ -9,7 +18,10 @@ import frames.FrameLoginRefused;
 import frames.FrameMessage;
 import frames.FrameMessagePrivate;
 import frames.FrameOkPrivate;
+import frames.FramePing;
+import frames.FramePong;
 import frames.FrameRequestPrivate;
+import frames.FrameRoomMessage;
 
 public interface PublicConnectionVisitor {
 	
@@ -23,5 +35,17 @@ public interface PublicConnectionVisitor {
 	public void visit(FrameLoginRefused frameLoginRefused);
 	public void visit(FrameOkPrivate frameOkPrivate);
 	public void visit(FrameRequestPrivate frameRequestPrivate);
+	public void visit(FrameHistoryRequest frameHistoryRequest);
+	public void visit(FrameHistoryMessage frameHistoryMessage);
+	public void visit(FrameJoinRoom frameJoinRoom);
+	public void visit(FrameLeaveRoom frameLeaveRoom);
+	public void visit(FrameRoomMessage frameRoomMessage);
+	public void visit(FrameCluster frameCluster);
+	public void visit(FrameBatch frameBatch);
+	public void visit(FrameCompressionRequest frameCompressionRequest);
+	public void visit(FrameCompressionAccepted frameCompressionAccepted);
+	public void visit(FrameCompressed frameCompressed);
+	public void visit(FramePing framePing);
+	public void visit(FramePong framePong);
 
 }